@@ -1,6 +1,5 @@
 package com.conveyal.taui;
 
-import com.auth0.jwt.JWTVerifier;
 import com.conveyal.gtfs.api.ApiMain;
 import com.conveyal.gtfs.api.util.FeedSourceCache;
 import com.conveyal.r5.util.ExceptionUtils;
@@ -47,6 +46,9 @@ public class AnalysisServer {
 
     private static final Logger LOG = LoggerFactory.getLogger(AnalysisServer.class);
 
+    /** Users of recently verified authentication tokens. Not used when working offline. */
+    private static TokenCache tokenCache;
+
     public static void main (String... args) {
 
         LOG.info("Starting Conveyal Analysis server, the time is now {}", DateTime.now());
@@ -67,6 +69,12 @@ public class AnalysisServer {
         // Initialize ImageIO. See http://stackoverflow.com/questions/20789546
         ImageIO.scanForPlugins();
 
+        // Spark starts serving as soon as the first filter or route is registered, so anything the filter uses must
+        // already be set up.
+        if (!AnalysisServerConfig.offline) {
+            tokenCache = new TokenCache(AnalysisServerConfig.auth0Secret, AnalysisServerConfig.auth0ClientId);
+        }
+
         // Configure Spark framework, specifying actions to take before the main logic of handling each HTTP request.
         before((req, res) -> {
             // Don't require authentication to view the main page, or for internal API endpoints contacted by workers.
@@ -155,6 +163,9 @@ public class AnalysisServer {
                     AnalysisServerConfig.localCacheDirectory);
         }
 
+        // Record the dates of service of bundles created before they were computed on upload.
+        ExecutorServices.heavy.execute(BundleController::addMissingServiceDates);
+
         LOG.info("Conveyal Analysis server is ready.");
     }
 
@@ -173,34 +184,43 @@ public class AnalysisServer {
             throw AnalysisServerException.unknown("Authorization header is malformed: " + auth);
         }
 
-        // validate the JWT
-        JWTVerifier verifier = new JWTVerifier(AnalysisServerConfig.auth0Secret, AnalysisServerConfig.auth0ClientId);
+        // Validate the JWT, unless it has already been validated and has not yet expired.
+        String token = authComponents[1];
+        TokenCache.VerifiedToken verified = tokenCache.get(token);
+        if (verified == null) {
+            Map<String, Object> jwt = null;
+            try {
+                jwt = tokenCache.verify(token);
+            } catch (Exception e) {
+                throw AnalysisServerException.forbidden("Login failed to verify with our authorization provider. " + ExceptionUtils.asString(e));
+            }
 
-        Map<String, Object> jwt = null;
-        try {
-            jwt = verifier.verify(authComponents[1]);
-        } catch (Exception e) {
-            throw AnalysisServerException.forbidden("Login failed to verify with our authorization provider. " + ExceptionUtils.asString(e));
-        }
+            if (!jwt.containsKey("analyst")) {
+                throw AnalysisServerException.forbidden("Access denied. User does not have access to Analysis.");
+            }
 
-        if (!jwt.containsKey("analyst")) {
-            throw AnalysisServerException.forbidden("Access denied. User does not have access to Analysis.");
-        }
+            String group;
+            try {
+                group = (String) ((Map<String, Object>) jwt.get("analyst")).get("group");
+            } catch (Exception e) {
+                throw AnalysisServerException.forbidden("Access denied. User is not associated with any group. " + ExceptionUtils.asString(e));
+            }
 
-        String group;
-        try {
-            group = (String) ((Map<String, Object>) jwt.get("analyst")).get("group");
-        } catch (Exception e) {
-            throw AnalysisServerException.forbidden("Access denied. User is not associated with any group. " + ExceptionUtils.asString(e));
-        }
+            if (group == null) {
+                throw AnalysisServerException.forbidden("Access denied. User is not associated with any group.");
+            }
 
-        if (group == null) {
-            throw AnalysisServerException.forbidden("Access denied. User is not associated with any group.");
+            verified = tokenCache.put(token, jwt, group);
         }
 
         // attributes to be used on models
-        req.attribute("accessGroup", group);
-        req.attribute("email", jwt.get("email"));
+        req.attribute("accessGroup", verified.accessGroup);
+        req.attribute("email", verified.email);
+    }
+
+    /** @return statistics of the cache of verified authentication tokens, or null when working offline. */
+    public static TokenCache.Statistics getTokenCacheStatistics () {
+        return tokenCache == null ? null : tokenCache.getStatistics();
     }
 
     public static void respondToException(Exception e, Request request, Response response, String type, String message, int code) {
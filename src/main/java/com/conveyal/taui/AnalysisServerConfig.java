@@ -56,6 +56,7 @@ public abstract class AnalysisServerConfig {
     public static final int lightThreads = Integer.parseInt(getProperty("light-threads", true));
     public static final int heavyThreads = Integer.parseInt(getProperty("heavy-threads", true));
     public static final int maxWorkers = Integer.parseInt(getProperty("max-workers", true));
+    public static final boolean prebuildNetworks = Boolean.parseBoolean(getProperty("prebuild-networks", false));
 
     // AWS specific stuff. This should be moved to another config object when we make this portable to other environments.
     public static final int workerPort = Integer.parseInt(getProperty("worker-port", true));
@@ -4,11 +4,16 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
- * Wrapper around two ExecutorServices, making them accessible JVM-wide. The two fields here allow a "heavy" executor
+ * Wrapper around ExecutorServices, making them accessible JVM-wide. The first two fields here allow a "heavy" executor
  * (for slow tasks) and a "light" executor (for fast tasks, the "passing lane"), each with a number of threads that
  * can be limited in the main analysis.properties configuration file to help limit heavy concurrent operations.
+ *
+ * The "compute" executor is for CPU-bound subtasks that a single heavy task splits up to run in parallel (parsing
+ * chunks of an uploaded file, rasterizing features). It has one thread per processor. Tasks submitted to it must never
+ * block waiting on other tasks submitted to it, or the pool could deadlock.
  */
 public abstract class ExecutorServices {
     public static final ExecutorService light = Executors.newFixedThreadPool(AnalysisServerConfig.lightThreads);
     public static final ExecutorService heavy = Executors.newFixedThreadPool(AnalysisServerConfig.heavyThreads);
+    public static final ExecutorService compute = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 }
@@ -0,0 +1,117 @@
+package com.conveyal.taui;
+
+import com.auth0.jwt.JWTVerifier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the users of recently verified authentication tokens. The UI sends the same token with every request, and
+ * verifying its signature on each of dozens of requests a second is wasted work, so once a token has been verified
+ * its access group and email are kept until the token expires. Tokens are held by their hash rather than as is.
+ *
+ * Only tokens that were verified and belong to a group are remembered, so an invalid token is verified (and rejected)
+ * every time it is presented, with the same error as before.
+ */
+public class TokenCache {
+    private static final int CACHE_SIZE = 10_000;
+
+    /** How long to remember a token with no expiration time. */
+    private static final int MAX_AGE_MINUTES = 60;
+
+    private final JWTVerifier verifier;
+
+    private final Cache<String, VerifiedToken> cache = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .expireAfterWrite(MAX_AGE_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    private final AtomicLong verifications = new AtomicLong();
+
+    private final AtomicLong verificationNanos = new AtomicLong();
+
+    /** The user a token was issued to, and when it expires. */
+    public static class VerifiedToken {
+        public final String accessGroup;
+        public final Object email;
+        final long expiresAtMillis;
+
+        private VerifiedToken (String accessGroup, Object email, long expiresAtMillis) {
+            this.accessGroup = accessGroup;
+            this.email = email;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    public TokenCache (byte[] secret, String audience) {
+        verifier = new JWTVerifier(secret, audience);
+    }
+
+    /** @return the verified user of the given token, or null if it has not been verified or has since expired. */
+    public VerifiedToken get (String token) {
+        String key = key(token);
+        VerifiedToken verified = cache.getIfPresent(key);
+        if (verified != null && System.currentTimeMillis() >= verified.expiresAtMillis) {
+            cache.invalidate(key);
+            return null;
+        }
+        return verified;
+    }
+
+    /**
+     * Verify the signature and claims of a token, which is not cached until it is known to belong to a group.
+     *
+     * @return the claims of the token
+     * @throws Exception whatever the verifier throws for an invalid or expired token
+     */
+    public Map<String, Object> verify (String token) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return verifier.verify(token);
+        } finally {
+            verificationNanos.addAndGet(System.nanoTime() - start);
+            verifications.incrementAndGet();
+        }
+    }
+
+    /** Remember the user of a token verified with the given claims. */
+    public VerifiedToken put (String token, Map<String, Object> jwt, String accessGroup) {
+        long expiresAtMillis = Long.MAX_VALUE;
+        Object exp = jwt.get("exp");
+        if (exp instanceof Number) expiresAtMillis = ((Number) exp).longValue() * 1000;
+        VerifiedToken verified = new VerifiedToken(accessGroup, jwt.get("email"), expiresAtMillis);
+        cache.put(key(token), verified);
+        return verified;
+    }
+
+    public Statistics getStatistics () {
+        return new Statistics();
+    }
+
+    private static String key (String token) {
+        return Hashing.sha256().hashString(token, StandardCharsets.UTF_8).toString();
+    }
+
+    /** The hit rate of the cache, and how long verifying a token takes on a miss. */
+    public class Statistics {
+        public final long size, hits, misses, verifications;
+        public final double hitRate, meanVerificationMsec;
+
+        private Statistics () {
+            CacheStats stats = cache.stats();
+            size = cache.size();
+            hits = stats.hitCount();
+            misses = stats.missCount();
+            hitRate = stats.hitRate();
+            verifications = TokenCache.this.verifications.get();
+            meanVerificationMsec = verifications == 0 ? 0 : verificationNanos.get() / 1e6 / verifications;
+        }
+    }
+}
@@ -57,6 +57,7 @@ public abstract class LocalCluster {
         }
 
         TransportNetworkCache transportNetworkCache = new TransportNetworkCache(gtfsCache, osmCache);
+        NetworkPrebuilder.setTransportNetworkCache(transportNetworkCache);
         LOG.info("Starting {} workers locally.", nWorkers);
         for (int i = 0; i < nWorkers; i++) {
             // Avoid starting more than one worker on the same machine trying to listen on the same port.
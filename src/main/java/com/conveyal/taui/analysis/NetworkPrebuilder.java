@@ -0,0 +1,108 @@
+package com.conveyal.taui.analysis;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.conveyal.gtfs.GTFSCache;
+import com.conveyal.r5.transit.TransportNetworkCache;
+import com.conveyal.r5.util.ExceptionUtils;
+import com.conveyal.taui.AnalysisServerConfig;
+import com.conveyal.taui.models.Bundle;
+import com.conveyal.taui.persistence.Persistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * Builds and serializes the transport network of a bundle as soon as the bundle has been created, so that the first
+ * single point or regional analysis of it does not have to wait for a worker to build the network from scratch.
+ *
+ * In offline mode the network is built through the TransportNetworkCache shared with the local workers, which keeps
+ * it in memory and in the local cache directory. Otherwise this server acts as the builder: a cache created for the
+ * build uploads the serialized network to the bundle bucket, where workers look for it before building a network
+ * themselves, and is then dropped so that the network does not stay in this server's heap.
+ *
+ * The network is built with the version of R5 this server depends on. The name of a serialized network includes the
+ * version of the serialization format, so workers running an R5 version with a different format do not find the
+ * prebuilt network and still build their own.
+ */
+public abstract class NetworkPrebuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(NetworkPrebuilder.class);
+
+    private static final String NETWORK_FILE_EXTENSION = ".dat";
+
+    private static final AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+            .withRegion(AnalysisServerConfig.awsRegion)
+            .build();
+
+    /** The cache shared with the local workers in offline mode, set when they are started. */
+    private static TransportNetworkCache transportNetworkCache;
+
+    static synchronized void setTransportNetworkCache (TransportNetworkCache cache) {
+        transportNetworkCache = cache;
+    }
+
+    /**
+     * In offline mode, the cache shared with the local workers, which should keep the network. Otherwise a new cache
+     * used only for one build, so that the network can be garbage collected once it has been uploaded.
+     */
+    private static synchronized TransportNetworkCache getTransportNetworkCache () {
+        if (AnalysisServerConfig.offline) return transportNetworkCache;
+        return new TransportNetworkCache(AnalysisServerConfig.awsRegion, AnalysisServerConfig.bundleBucket);
+    }
+
+    /**
+     * Build the network of a bundle whose manifest has been written, recording the build time and the size of the
+     * serialized network on the bundle. Blocks for as long as the build takes, so should be called on a heavy thread.
+     * A failure is only logged, as workers can still build the network themselves.
+     */
+    public static void prebuild (Bundle bundle) {
+        TransportNetworkCache cache = getTransportNetworkCache();
+        if (cache == null) {
+            LOG.warn("No transport network cache is available, not prebuilding the network of {}", bundle);
+            return;
+        }
+
+        long buildTime;
+        try {
+            LOG.info("Prebuilding the network of {}", bundle);
+            long start = System.currentTimeMillis();
+            cache.getNetwork(bundle._id);
+            buildTime = System.currentTimeMillis() - start;
+        } catch (Exception e) {
+            LOG.error("Error prebuilding the network of {}: {}", bundle, ExceptionUtils.asString(e));
+            return;
+        }
+        long size = getNetworkSize(bundle._id);
+        LOG.info("Built the network of {} in {} ms ({} bytes)", bundle, buildTime, size);
+
+        // Reload the bundle, as it may have been edited while the network was building. This is not a user edit, so
+        // don't update the nonce.
+        Bundle current = Persistence.bundles.get(bundle._id);
+        if (current == null) return;
+        current.networkBuildTime = buildTime;
+        current.networkSize = size;
+        Persistence.bundles.modifiyWithoutUpdatingLock(current);
+    }
+
+    /**
+     * @return the size in bytes of the serialized network of the given bundle, or 0 if it can't be found. The file
+     * name of a network is its ID followed by the version of the serialization format, so match on the ID.
+     */
+    private static long getNetworkSize (String bundleId) {
+        String prefix = GTFSCache.cleanId(bundleId) + "_";
+        if (AnalysisServerConfig.offline) {
+            File[] files = new File(AnalysisServerConfig.localCacheDirectory)
+                    .listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(NETWORK_FILE_EXTENSION));
+            if (files == null || files.length == 0) return 0;
+            return files[0].length();
+        } else {
+            return s3.listObjects(AnalysisServerConfig.bundleBucket, prefix).getObjectSummaries().stream()
+                    .filter(o -> o.getKey().endsWith(NETWORK_FILE_EXTENSION))
+                    .mapToLong(S3ObjectSummary::getSize)
+                    .findFirst()
+                    .orElse(0);
+        }
+    }
+}
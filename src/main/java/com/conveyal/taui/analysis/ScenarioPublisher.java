@@ -0,0 +1,99 @@
+package com.conveyal.taui.analysis;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.taui.AnalysisServerConfig;
+import com.conveyal.taui.util.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Makes the scenarios of regional analyses available to workers, which are sent only the ID of the scenario in each
+ * task. The scenario is saved in the local cache directory, and unless working offline is also uploaded to the bundle
+ * bucket, where workers look for it by the name bundleId_scenarioId.json. Workers can also fetch it from this server.
+ *
+ * The ID of a scenario ends with the CRC of its modifications (see AnalysisRequest.populateTask), so a scenario file
+ * never changes once written. Re-running an analysis of the same scenario, or running it with different parameters,
+ * therefore neither rewrites the local file nor uploads it again.
+ */
+public abstract class ScenarioPublisher {
+    private static final Logger LOG = LoggerFactory.getLogger(ScenarioPublisher.class);
+
+    /** Bundle and scenario IDs are Mongo object IDs, UUIDs, or project-variant-CRC strings. */
+    private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_\\-]+");
+
+    private static final AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+            .withRegion(AnalysisServerConfig.awsRegion)
+            .build();
+
+    /** The names of the scenario files known to be in the bundle bucket, to avoid asking S3 each time. */
+    private static final Set<String> uploaded = ConcurrentHashMap.newKeySet();
+
+    public static String fileName (String bundleId, String scenarioId) {
+        return String.format("%s_%s.json", bundleId, scenarioId);
+    }
+
+    /**
+     * Save the scenario to the local cache directory and, unless working offline, upload it to the bundle bucket,
+     * skipping either step if the scenario is already there.
+     */
+    public static void publish (String bundleId, Scenario scenario) {
+        String fileName = fileName(bundleId, scenario.id);
+        File cachedScenario = new File(AnalysisServerConfig.localCacheDirectory, fileName);
+        if (!cachedScenario.exists()) {
+            try {
+                // Write to a temporary file and then move it into place, so that a worker fetching the scenario
+                // never sees it half written.
+                File tempFile = File.createTempFile(fileName, ".tmp", cachedScenario.getParentFile());
+                JsonUtil.objectMapper.writeValue(tempFile, scenario);
+                Files.move(tempFile.toPath(), cachedScenario.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOG.error("Error saving scenario to disk", e);
+            }
+        }
+        if (AnalysisServerConfig.offline || uploaded.contains(fileName) || !cachedScenario.exists()) return;
+        if (s3.doesObjectExist(AnalysisServerConfig.bundleBucket, fileName)) {
+            LOG.info("Scenario {} has already been uploaded.", fileName);
+        } else {
+            s3.putObject(AnalysisServerConfig.bundleBucket, fileName, cachedScenario);
+        }
+        uploaded.add(fileName);
+    }
+
+    /**
+     * Get the local copy of a published scenario, downloading it from the bundle bucket if it is not in the local
+     * cache (for instance because it was published by another server, or before the cache directory was cleared).
+     *
+     * @return the scenario file, or null if the scenario has not been published or the IDs are not valid
+     */
+    public static File getScenarioFile (String bundleId, String scenarioId) {
+        if (!ID_PATTERN.matcher(bundleId).matches() || !ID_PATTERN.matcher(scenarioId).matches()) return null;
+        String fileName = fileName(bundleId, scenarioId);
+        File cachedScenario = new File(AnalysisServerConfig.localCacheDirectory, fileName);
+        if (cachedScenario.exists()) return cachedScenario;
+        if (AnalysisServerConfig.offline || !s3.doesObjectExist(AnalysisServerConfig.bundleBucket, fileName)) {
+            return null;
+        }
+        try {
+            File tempFile = File.createTempFile(fileName, ".tmp", cachedScenario.getParentFile());
+            s3.getObject(new GetObjectRequest(AnalysisServerConfig.bundleBucket, fileName), tempFile);
+            Files.move(tempFile.toPath(), cachedScenario.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.error("Error saving scenario {} to disk", fileName, e);
+            return null;
+        }
+        uploaded.add(fileName);
+        return cachedScenario;
+    }
+}
@@ -0,0 +1,178 @@
+package com.conveyal.taui.analysis;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recent single point results from workers, so that a user who requests the same origin, scenario and parameters
+ * again (as happens when switching between panels of the UI) is answered without going back to a worker. Results are
+ * keyed by a hash of the task as serialized to be sent to the worker, which includes the scenario ID (identifying the
+ * exact revision of the scenario), the network, the worker version and the requested format. The cache is bounded by
+ * the total size of the results it holds, and results are only kept for a few minutes.
+ *
+ * Identical requests made while the first of them is still waiting for a worker wait for its result, rather than each
+ * being sent to the worker. If the first request fails, one of the waiting requests takes its place and the others
+ * wait for that one in turn.
+ */
+public class SinglePointResultCache {
+
+    private static final long MAX_TOTAL_BYTES = 200 * 1024 * 1024;
+
+    /** Results larger than this are passed through to the UI but not kept. */
+    public static final int MAX_RESULT_BYTES = 20 * 1024 * 1024;
+
+    private static final int EXPIRY_MINUTES = 5;
+
+    /** How long an identical request waits for the first, about as long as the worker is given to respond. */
+    private static final int MAX_WAIT_SECONDS = 60;
+
+    private final Cache<String, Result> cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_TOTAL_BYTES)
+            .<String, Result>weigher((key, result) -> result.body.length)
+            .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    private final long maxWaitMillis;
+
+    private final Map<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public SinglePointResultCache () {
+        this(TimeUnit.SECONDS.toMillis(MAX_WAIT_SECONDS));
+    }
+
+    /** @param maxWaitMillis how long an identical request waits for the first, shortened in tests */
+    SinglePointResultCache (long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /** A response from a worker, as it was sent. */
+    public static class Result {
+        public final String contentType;
+        public final String contentEncoding;
+        public final byte[] body;
+
+        public Result (String contentType, String contentEncoding, byte[] body) {
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A request for a result that is not cached. The first of several identical requests owns the claim, asks a worker
+     * for the result and must complete the claim, while the others wait for it. A waiting request may become the owner
+     * while it waits, if the owner before it fails.
+     */
+    public class Claim {
+        private final String key;
+        private CompletableFuture<Result> future;
+        public boolean owner;
+
+        private Claim (String key, CompletableFuture<Result> future, boolean owner) {
+            this.key = key;
+            this.future = future;
+            this.owner = owner;
+        }
+
+        /**
+         * Wait for the owner of the claim to get its result. If the owner completes the claim without a result, the
+         * first waiting request to notice claims the key in its place, so only one of them goes on to ask a worker.
+         *
+         * @return the result, or null if this request now owns the claim, or if the wait took too long, in which case
+         *         the result of this request will not be kept
+         */
+        public Result await () {
+            long deadline = System.currentTimeMillis() + maxWaitMillis;
+            while (!owner) {
+                Result result;
+                try {
+                    result = future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (Exception e) {
+                    return null;
+                }
+                if (result != null) {
+                    coalescedCount.incrementAndGet();
+                    return result;
+                }
+                // The owner failed and has withdrawn its claim, so try to take it over.
+                CompletableFuture<Result> next = new CompletableFuture<>();
+                CompletableFuture<Result> existing = inFlight.putIfAbsent(key, next);
+                if (existing == null) {
+                    future = next;
+                    owner = true;
+                } else {
+                    future = existing;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Keep the result of the owner of this claim unless it is too big, and pass it to any waiting requests. If the
+         * result is null because the owner failed, one of the waiting requests takes over the claim. Only the first
+         * call has any effect.
+         */
+        public void complete (Result result) {
+            if (!owner || future.isDone()) return;
+            if (result != null && result.body.length <= MAX_RESULT_BYTES) cache.put(key, result);
+            inFlight.remove(key, future);
+            future.complete(result);
+        }
+    }
+
+    /**
+     * @param task the task as serialized to be sent to the worker
+     * @param encoding the encoding the worker was asked to use, as the result is kept as the worker sent it
+     */
+    public static String key (byte[] task, String encoding) {
+        return Hashing.sha256().newHasher().putBytes(task).putUnencodedChars(encoding).hash().toString();
+    }
+
+    /** @return the cached result for the given key, or null if there is none */
+    public Result get (String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /** Claim the result for a key that was not cached, or join the claim of an identical request made earlier. */
+    public Claim claim (String key) {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        CompletableFuture<Result> existing = inFlight.putIfAbsent(key, future);
+        if (existing == null) return new Claim(key, future, true);
+        return new Claim(key, existing, false);
+    }
+
+    public Statistics getStatistics () {
+        return new Statistics();
+    }
+
+    /** Hits are results found in the cache, and coalesced requests those answered with the result of another. */
+    public class Statistics {
+        public final long size, bytes, hits, misses, coalesced, evictions;
+        public final double hitRate;
+
+        private Statistics () {
+            CacheStats stats = cache.stats();
+            size = cache.size();
+            bytes = cache.asMap().values().stream().mapToLong(result -> result.body.length).sum();
+            hits = stats.hitCount();
+            misses = stats.missCount();
+            coalesced = coalescedCount.get();
+            evictions = stats.evictionCount();
+            hitRate = stats.hitRate();
+        }
+    }
+}
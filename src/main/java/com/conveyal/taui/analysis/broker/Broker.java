@@ -25,6 +25,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.Properties;
 
 
@@ -275,17 +276,28 @@ public class Broker {
     }
 
     /**
-     * Given a worker commit ID and transport network, return the IP or DNS name of a worker that has that software
-     * and network already loaded. If none exist, return null and try to start one.
+     * Given a worker commit ID and transport network, choose a worker that has that software and network already
+     * loaded to handle a single point request on the given scenario. If none exist, return null and the caller should
+     * try to start one. Once the request has been sent, the caller must report the outcome with the methods below and
+     * finally call finishSinglePointRequest. See WorkerCatalog.startSinglePointRequest for how the worker is chosen.
      */
-    public synchronized String getWorkerAddress(WorkerCategory workerCategory) {
+    public SinglePointWorker startSinglePointRequest (WorkerCategory workerCategory, String scenarioId) {
         if (workOffline) {
-            return "localhost";
+            return new SinglePointWorker("localhost", "localhost");
         }
-        // First try to get a worker that's already loaded the right network.
-        // This value will be null if no workers exist in this category - caller should attempt to create some.
-        String workerAddress = workerCatalog.getSinglePointWorkerAddressForCategory(workerCategory);
-        return workerAddress;
+        return workerCatalog.startSinglePointRequest(workerCategory, scenarioId);
+    }
+
+    public void recordSinglePointLatency (SinglePointWorker worker, long latencyMsec) {
+        workerCatalog.recordSinglePointLatency(worker, latencyMsec);
+    }
+
+    public void recordSinglePointFailure (SinglePointWorker worker, boolean unreachable) {
+        workerCatalog.recordSinglePointFailure(worker, unreachable);
+    }
+
+    public void finishSinglePointRequest (SinglePointWorker worker) {
+        workerCatalog.finishSinglePointRequest(worker);
     }
 
 
@@ -311,10 +323,6 @@ public class Broker {
         return jobStatusList;
     }
 
-    public synchronized void unregisterSinglePointWorker (WorkerCategory category) {
-        workerCatalog.tryToReassignSinglePointWork(category);
-    }
-
     /**
      * Record information that a worker sent about itself.
      */
@@ -356,6 +364,17 @@ public class Broker {
         }
     }
 
+    /**
+     * Describe the progress of every job whose results are being assembled, so that responses including the statuses
+     * returned by getJobStatus can be given a version that changes as results arrive.
+     */
+    public synchronized String getJobStatusVersion () {
+        StringBuilder version = new StringBuilder();
+        new TreeMap<>(resultAssemblers).forEach((jobId, assembler) ->
+                version.append(jobId).append(':').append(assembler.nComplete).append(';'));
+        return version.toString();
+    }
+
     /**
      * Returns a simple status object intended to inform the UI of job progress.
      */
@@ -0,0 +1,47 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * The single point requests a worker is handling, and how quickly it has been responding to them. Unlike an
+ * observation, which is replaced each time the worker polls, this is kept for as long as the worker is in the catalog.
+ * It is only read and modified while holding the lock on the WorkerCatalog.
+ */
+public class SinglePointLoad {
+
+    /** The weight of each new response time in the moving average of response times. */
+    static final double LATENCY_WEIGHT = 0.3;
+
+    /** Requests that have been sent to the worker and not yet fully answered. */
+    public int outstandingRequests;
+
+    /**
+     * Exponentially weighted moving average of the time the worker takes to start responding, in milliseconds, or
+     * zero if it has not yet responded to any request.
+     */
+    public double latencyMsec;
+
+    /** Timeouts and connection failures since the worker last responded. */
+    public int consecutiveFailures;
+
+    /** No single point requests are sent to the worker before this time, in milliseconds since the epoch. */
+    @JsonIgnore
+    long ejectedUntil;
+
+    void recordLatency (long msec) {
+        latencyMsec = latencyMsec == 0 ? msec : LATENCY_WEIGHT * msec + (1 - LATENCY_WEIGHT) * latencyMsec;
+        consecutiveFailures = 0;
+    }
+
+    boolean isEjected (long now) {
+        return ejectedUntil > now;
+    }
+
+    /** This method is here to enrich the REST API responses, making them more human readable. */
+    @JsonInclude
+    public long getEjectedSecondsRemaining () {
+        return Math.max(0, (ejectedUntil - System.currentTimeMillis()) / 1000);
+    }
+
+}
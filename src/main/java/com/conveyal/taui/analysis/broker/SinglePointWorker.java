@@ -0,0 +1,22 @@
+package com.conveyal.taui.analysis.broker;
+
+/**
+ * The worker chosen to handle a single point request. Once the request is sent, the broker should be told how long
+ * the worker took to respond or whether it failed to respond, and finally that the request is finished.
+ */
+public class SinglePointWorker {
+
+    /** Returned in place of a worker when every worker in the category is already handling as much as it should. */
+    public static final SinglePointWorker BUSY = new SinglePointWorker(null, null);
+
+    public final String workerId;
+
+    /** The IP address or DNS name of the worker machine. */
+    public final String address;
+
+    public SinglePointWorker (String workerId, String address) {
+        this.workerId = workerId;
+        this.address = address;
+    }
+
+}
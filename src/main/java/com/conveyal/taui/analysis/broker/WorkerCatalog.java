@@ -4,9 +4,14 @@ import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,8 +24,22 @@ import java.util.stream.Collectors;
  */
 public class WorkerCatalog {
 
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerCatalog.class);
+
     public static final int WORKER_RECORD_DURATION_MSEC = 2 * 60 * 1000;
 
+    /**
+     * A worker computes each single point request on all of its cores, so requests beyond this many only queue up on
+     * the worker. Further requests go to another worker, or are turned away if all workers are at this limit.
+     */
+    public static final int MAX_SINGLE_POINT_REQUESTS_PER_WORKER = 4;
+
+    /** A worker that times out this many times in a row is ejected, as is one that cannot be connected to at all. */
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    /** How long an ejected worker is sent no single point requests, after which it is given another chance. */
+    private static final int EJECTION_DURATION_MSEC = 60 * 1000;
+
     /**
      * The information supplied by workers the last time they polled for more tasks.
      * We store these observations keyed on the worker ID so new observations replace old ones for the same worker.
@@ -35,11 +54,10 @@ public class WorkerCatalog {
     private Multimap<WorkerCategory, String> workerIdsByCategory = HashMultimap.create();
 
     /**
-     * Tracks which worker within each category we are directing single point requests to.
-     * This is a trade-off: single point work is not balanced between workers, but once a worker applies scenarios
-     * and links pointsets that work will not need to be redone for subsequent single point requests.
+     * The single point requests each worker is handling, keyed on worker ID like the observations but kept when a
+     * new observation of the worker replaces the previous one.
      */
-    private Map<WorkerCategory, String> singlePointWorkerIdByCategory = new HashMap<>();
+    private Map<String, SinglePointLoad> singlePointLoadByWorkerId = new HashMap<>();
 
     /**
      * Record the fact that a worker with a particular ID was just observed polling for tasks.
@@ -53,16 +71,12 @@ public class WorkerCatalog {
             // Remove the worker from its previous category before adding it to the new category.
             if ( ! observation.category.equals(oldObservation.category)) {
                 workerIdsByCategory.remove(oldObservation.category, workerId);
-                singlePointWorkerIdByCategory.remove(oldObservation.category, workerId);
             }
         }
         // Associate the worker with its currently reported category. According to Guava docs, Multimap does not store
         // duplicate key-value pairs. Adding a new key-value pair equal to an existing key-value pair has no effect.
         workerIdsByCategory.put(observation.category, workerId);
-        // If this worker's current category has no assigned single point worker, assign this worker.
-        if (singlePointWorkerIdByCategory.get(observation.category) == null) {
-            singlePointWorkerIdByCategory.put(observation.category, observation.workerId);
-        }
+        observation.singlePointLoad = singlePointLoadByWorkerId.computeIfAbsent(workerId, id -> new SinglePointLoad());
     }
 
     /**
@@ -82,43 +96,98 @@ public class WorkerCatalog {
         for (WorkerObservation observation : ancientObservations) {
             observationsByWorkerId.remove(observation.workerId);
             workerIdsByCategory.remove(observation.category, observation.workerId);
-            singlePointWorkerIdByCategory.remove(observation.category, observation.workerId);
+            singlePointLoadByWorkerId.remove(observation.workerId);
         }
     }
 
     /**
-     * If a single-point worker has shut down, single-point work for a given workerCategory should be re-assigned. If
-     * no other workers of the requested workerCategory exist, the caller in the Broker should start one.
+     * Choose a worker in the given category to handle a single point request, and count the request as outstanding on
+     * that worker until finishSinglePointRequest is called.
+     *
+     * Requests for the same scenario go to the same worker, so that the scenario is applied and the pointsets linked
+     * on as few workers as possible. The worker is chosen by rendezvous hashing, which spreads scenarios evenly across
+     * the workers and moves only the scenarios of a worker that joins or leaves the category. If that worker already
+     * has as many requests as it should handle at once, the request goes to the worker with the fewest outstanding
+     * requests, the one that has been responding faster breaking ties. Ejected workers are not considered.
      *
-     * @param workerCategory of worker that could not be reached for a single-point request (and has presumably shut
-     *                       down)
+     * @return the chosen worker; SinglePointWorker.BUSY if every worker is at its limit; or null if there are no
+     *         workers in the category that have not been ejected, in which case the caller should start one.
      */
-    public synchronized void tryToReassignSinglePointWork (WorkerCategory workerCategory) {
-        String oldSinglePointWorkerId = singlePointWorkerIdByCategory.get(workerCategory);
-
-        // Clear the shut down worker from places it had been cataloged
-        singlePointWorkerIdByCategory.remove(workerCategory);
-        observationsByWorkerId.remove(oldSinglePointWorkerId);
-        workerIdsByCategory.remove(workerCategory, oldSinglePointWorkerId);
-
-        // If another worker for this workerCategory is running, set it to handle single-point work.
-        if (workerIdsByCategory.get(workerCategory).size() > 0) {
-            String nextWorkerId = workerIdsByCategory.get(workerCategory).iterator().next();
-            singlePointWorkerIdByCategory.put(workerCategory, nextWorkerId);
+    public synchronized SinglePointWorker startSinglePointRequest (WorkerCategory workerCategory, String scenarioId) {
+        purgeDeadWorkers();
+        long now = System.currentTimeMillis();
+        List<String> workerIds = workerIdsByCategory.get(workerCategory).stream()
+                .filter(workerId -> !singlePointLoadByWorkerId.get(workerId).isEjected(now))
+                .collect(Collectors.toList());
+        if (workerIds.isEmpty()) return null;
+
+        String workerId = workerIds.stream()
+                .max(Comparator.comparingLong(id -> rendezvousWeight(id, scenarioId)))
+                .get();
+        if (singlePointLoadByWorkerId.get(workerId).outstandingRequests >= MAX_SINGLE_POINT_REQUESTS_PER_WORKER) {
+            workerId = workerIds.stream()
+                    .min(Comparator.<String>comparingInt(id -> singlePointLoadByWorkerId.get(id).outstandingRequests)
+                            .thenComparingDouble(id -> singlePointLoadByWorkerId.get(id).latencyMsec))
+                    .get();
         }
+        SinglePointLoad load = singlePointLoadByWorkerId.get(workerId);
+        if (load.outstandingRequests >= MAX_SINGLE_POINT_REQUESTS_PER_WORKER) return SinglePointWorker.BUSY;
+        load.outstandingRequests += 1;
+        return new SinglePointWorker(workerId, observationsByWorkerId.get(workerId).status.ipAddress);
+    }
+
+    /** Record that a worker started responding to a single point request after the given time. */
+    public synchronized void recordSinglePointLatency (SinglePointWorker worker, long latencyMsec) {
+        SinglePointLoad load = singlePointLoadByWorkerId.get(worker.workerId);
+        if (load != null) load.recordLatency(latencyMsec);
     }
 
     /**
-     * Return the address of a worker machine on a given category that can be used to handle a single point request.
-     * Attempt to repeatedly return the same active worker for a given category.
-     * This helps direct single point requests to the same worker and avoid relinking.
-     * The HashMultimap does not return values in a predictable order, so we maintain a separate map for these workers.
+     * Record that a worker did not respond to a single point request. A worker that could not be connected to is
+     * ejected at once, while one that timed out is only ejected after several timeouts in a row, as a single timeout
+     * may just mean that the scenario was slow to apply. Timeouts never eject the last worker in a category that has
+     * not been ejected, as the requests would then start a new worker, which would be no faster on a slow scenario.
+     *
+     * @param unreachable true if the worker could not be connected to, false if it timed out
      */
-    public synchronized String getSinglePointWorkerAddressForCategory(WorkerCategory workerCategory) {
-        purgeDeadWorkers();
-        String workerId = singlePointWorkerIdByCategory.get(workerCategory);
-        if (workerId == null) return null;
-        return observationsByWorkerId.get(workerId).status.ipAddress;
+    public synchronized void recordSinglePointFailure (SinglePointWorker worker, boolean unreachable) {
+        SinglePointLoad load = singlePointLoadByWorkerId.get(worker.workerId);
+        if (load == null) return;
+        load.consecutiveFailures += 1;
+        if (!unreachable && load.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES && isLastWorker(worker.workerId)) {
+            LOG.info("Not ejecting worker {} after {} timeouts, as no other worker can take its requests.",
+                    worker.workerId, load.consecutiveFailures);
+            return;
+        }
+        if (unreachable || load.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+            LOG.info("Ejecting worker {} from single point routing for {} seconds after {} failures.",
+                    worker.workerId, EJECTION_DURATION_MSEC / 1000, load.consecutiveFailures);
+            load.ejectedUntil = System.currentTimeMillis() + EJECTION_DURATION_MSEC;
+            load.consecutiveFailures = 0;
+        }
+    }
+
+    /** @return whether every other worker in the category of the given worker has been ejected */
+    private boolean isLastWorker (String workerId) {
+        WorkerObservation observation = observationsByWorkerId.get(workerId);
+        if (observation == null) return false;
+        long now = System.currentTimeMillis();
+        return workerIdsByCategory.get(observation.category).stream()
+                .noneMatch(id -> !id.equals(workerId) && !singlePointLoadByWorkerId.get(id).isEjected(now));
+    }
+
+    /** Record that a single point request is no longer outstanding, whether or not the worker responded. */
+    public synchronized void finishSinglePointRequest (SinglePointWorker worker) {
+        SinglePointLoad load = singlePointLoadByWorkerId.get(worker.workerId);
+        if (load != null && load.outstandingRequests > 0) load.outstandingRequests -= 1;
+    }
+
+    /** The highest weight of all workers for a scenario marks the worker that should handle that scenario. */
+    private static long rendezvousWeight (String workerId, String scenarioId) {
+        return Hashing.murmur3_128().newHasher()
+                .putString(workerId, StandardCharsets.UTF_8)
+                .putString(String.valueOf(scenarioId), StandardCharsets.UTF_8)
+                .hash().asLong();
     }
 
     public synchronized int totalWorkerCount() {
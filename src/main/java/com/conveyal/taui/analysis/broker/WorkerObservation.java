@@ -30,6 +30,9 @@ public class WorkerObservation {
 
     public List<Bundle> bundles;
 
+    /** The single point requests this worker is handling, shared by all observations of the same worker. */
+    public SinglePointLoad singlePointLoad;
+
     // Eventually observation should probably be merged with the status it contains.
     public WorkerObservation (WorkerStatus status) {
         this.workerId = status.workerId;
@@ -7,21 +7,14 @@ import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.conveyal.r5.analyst.Grid;
 import com.conveyal.r5.util.S3Util;
-import com.conveyal.r5.util.ShapefileReader;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.AnalysisServerException;
 import com.conveyal.taui.grids.SeamlessCensusGridExtractor;
+import com.conveyal.taui.grids.ShapefileRasterizer;
 import com.conveyal.taui.models.AggregationArea;
 import com.conveyal.taui.persistence.Persistence;
 import com.conveyal.taui.util.JsonUtil;
-import com.google.common.io.Files;
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.operation.union.UnaryUnionOp;
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import com.conveyal.taui.util.MultipartUpload;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,9 +30,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.util.Date;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 import java.util.zip.GZIPOutputStream;
 
 import static spark.Spark.get;
@@ -54,63 +44,25 @@ public class AggregationAreaController {
     private static final AmazonS3 s3 = AmazonS3ClientBuilder.standard()
             .withRegion(awsRegion)
             .build();
-    private static final FileItemFactory fileItemFactory = new DiskFileItemFactory();
 
     public static AggregationArea createAggregationArea (Request req, Response res) throws Exception {
-        ServletFileUpload sfu = new ServletFileUpload(fileItemFactory);
-        Map<String, List<FileItem>> query = sfu.parseParameterMap(req.raw());
-
-        // extract relevant files: .shp, .prj, .dbf, and .shx.
-        // We need the SHX even though we're looping over every feature as they might be sparse.
-        Map<String, FileItem> filesByName = query.get("files").stream()
-                .collect(Collectors.toMap(FileItem::getName, f -> f));
-
-        String fileName = filesByName.keySet().stream().filter(f -> f.endsWith(".shp")).findAny().orElse(null);
-        if (fileName == null) {
-            throw AnalysisServerException.fileUpload("Shapefile upload must contain .shp, .prj, and .dbf");
+        MultipartUpload upload = MultipartUpload.receive(req);
+        try {
+            return createAggregationArea(req, upload);
+        } finally {
+            upload.delete();
         }
-        String baseName = fileName.substring(0, fileName.length() - 4);
+    }
 
-        if (!filesByName.containsKey(baseName + ".shp") ||
-                !filesByName.containsKey(baseName + ".prj") ||
-                !filesByName.containsKey(baseName + ".dbf")) {
-            throw AnalysisServerException.fileUpload("Shapefile upload must contain .shp, .prj, and .dbf");
-        }
+    private static AggregationArea createAggregationArea (Request req, MultipartUpload upload) throws Exception {
+        // The .shx is optional, and not needed as we're looping over every feature anyway.
+        File shpFile = upload.getShapefile("files");
 
         String regionId = req.params("regionId");
-        String maskName = query.get("name").get(0).getString("UTF-8");
-
-        File tempDir = Files.createTempDir();
-
-        File shpFile = new File(tempDir, "grid.shp");
-        filesByName.get(baseName + ".shp").write(shpFile);
-
-        File prjFile = new File(tempDir, "grid.prj");
-        filesByName.get(baseName + ".prj").write(prjFile);
-
-        File dbfFile = new File(tempDir, "grid.dbf");
-        filesByName.get(baseName + ".dbf").write(dbfFile);
-
-        // shx is optional, not needed for dense shapefiles
-        if (filesByName.containsKey(baseName + ".shx")) {
-            File shxFile = new File(tempDir, "grid.shx");
-            filesByName.get(baseName + ".shx").write(shxFile);
-        }
-
-        ShapefileReader reader = new ShapefileReader(shpFile);
-
-        List<Geometry> geometries = reader.wgs84Stream()
-                    .map(f -> (Geometry) f.getDefaultGeometry())
-                    .collect(Collectors.toList());
-        UnaryUnionOp union = new UnaryUnionOp(geometries);
-        Geometry merged = union.union();
-
-        Envelope env = merged.getEnvelopeInternal();
-        Grid maskGrid = new Grid(SeamlessCensusGridExtractor.ZOOM, env.getMaxY(), env.getMaxX(), env.getMinY(), env.getMinX());
+        String maskName = upload.getRequiredString("name");
 
         // Store the percentage each cell overlaps the mask, scaled as 0 to 100,000
-        List<Grid.PixelWeight> weights = maskGrid.getPixelWeights(merged, true);
-        weights.forEach(pixel -> maskGrid.grid[pixel.x][pixel.y] = pixel.weight * 100_000);
+        Grid maskGrid = ShapefileRasterizer.rasterizeMask(shpFile, SeamlessCensusGridExtractor.ZOOM, 100_000);
 
         ObjectMetadata metadata = new ObjectMetadata();
         metadata.setContentEncoding("gzip");
@@ -124,7 +76,7 @@ public class AggregationAreaController {
         aggregationArea.accessGroup = req.attribute("accessGroup");
         aggregationArea.createdBy = req.attribute("email");
 
-        File gridFile = new File(tempDir, "weights.grid");
+        File gridFile = new File(upload.directory, "weights.grid");
         OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gridFile)));
         maskGrid.write(os);
         os.close();
@@ -137,8 +89,6 @@ public class AggregationAreaController {
         S3Util.s3.putObject(AnalysisServerConfig.gridBucket, aggregationArea.getS3Key(), is, metadata);
         is.close();
 
-        tempDir.delete();
-
         return aggregationArea;
     }
 
@@ -2,22 +2,24 @@ package com.conveyal.taui.controllers;
 
 import com.conveyal.taui.models.Bookmark;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.HttpUtil;
+import com.conveyal.taui.util.JsonUtil;
+import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
 import spark.Request;
 import spark.Response;
 
 import java.io.IOException;
-import java.util.Collection;
 
 /**
  * Created by matthewc on 4/18/17.
  */
 public class BookmarkController {
-    public static Collection<Bookmark> getAllBookmarks (Request request, Response response) {
-        return Persistence.bookmarks.findPermitted(
-                QueryBuilder.start("regionId").is(request.params("region")).get(),
-                request.attribute("accessGroup")
-        );
+    public static String getAllBookmarks (Request request, Response response) throws IOException {
+        DBObject query = QueryBuilder.start("regionId").is(request.params("region")).get();
+        String version = Persistence.bookmarks.pageVersion(query, request);
+        if (HttpUtil.notModified(request, response, HttpUtil.weakEtag(version))) return "";
+        return JsonUtil.writeJsonArray(Persistence.bookmarks.findPermittedPage(query, null, request), response);
     }
 
     public static Bookmark createBookmark (Request request, Response response) throws IOException {
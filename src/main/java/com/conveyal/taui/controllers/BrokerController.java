@@ -8,46 +8,65 @@ import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
 import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.taui.AnalysisServer;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.AnalysisServerException;
+import com.conveyal.taui.TokenCache;
+import com.conveyal.taui.analysis.ScenarioPublisher;
+import com.conveyal.taui.analysis.SinglePointResultCache;
 import com.conveyal.taui.analysis.broker.Broker;
 import com.conveyal.taui.analysis.broker.JobStatus;
+import com.conveyal.taui.analysis.broker.SinglePointWorker;
 import com.conveyal.taui.analysis.broker.WorkerObservation;
 import com.conveyal.taui.analysis.broker.WorkerTags;
 import com.conveyal.taui.models.AnalysisRequest;
 import com.conveyal.taui.models.Bundle;
+import com.conveyal.taui.models.CompiledScenario;
 import com.conveyal.taui.models.Project;
 import com.conveyal.taui.models.RegionalAnalysis;
 import com.conveyal.taui.persistence.Persistence;
 import com.conveyal.taui.util.HttpStatus;
+import com.conveyal.taui.util.HttpUtil;
 import com.conveyal.taui.util.JsonUtil;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
 import com.mongodb.DBObject;
-import com.mongodb.QueryBuilder;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.util.EntityUtils;
-import org.mongojack.DBCursor;
 import org.mongojack.DBProjection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.NoRouteToHostException;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
+import java.nio.file.Files;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import static spark.Spark.get;
 import static spark.Spark.head;
@@ -82,6 +101,12 @@ public class BrokerController {
     /** This HTTP client contacts workers to send them single-point tasks for immediate processing. */
     private static HttpClient httpClient = AnalystWorker.makeHttpClient();
 
+    /** Recent single point results, shared by all users as results are keyed on the full task. */
+    private final SinglePointResultCache singlePointResults = new SinglePointResultCache();
+
+    /** Worker responses are passed through to the UI in pieces of at most this many bytes, as they arrive. */
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
     public BrokerController(Broker broker) {
         this.broker = broker;
     }
@@ -98,8 +123,11 @@ public class BrokerController {
     public void register () {
         head("", this::headHandler);
         post("/internal/poll", this::workerPoll);
+        get("/internal/scenario/:bundleId/:scenarioId", this::getScenario);
         get("/api/jobs", this::getAllJobs);
         get("/api/workers", this::getAllWorkers);
+        get("/api/cache", this::getCacheStatistics);
+        get("/api/authentication", this::getAuthenticationStatistics);
         post("/api/analysis", this::singlePoint); // TODO rename HTTP path to "single" or something
     }
 
@@ -113,7 +141,8 @@ public class BrokerController {
      * we forward the request to a worker), but since Spark wraps the internal Jetty request/response objects, we
      * don't gain much. We should probably switch to the Jetty HTTP client some day when we get rid of Spark.
      * There is also a Jetty proxy module that may be too simple for what we're doing here.
-     * @return whatever the worker responds, usually an input stream. Spark serializer chain can properly handle streams.
+     * Recent results are kept in a SinglePointResultCache, so repeating a request does not always reach a worker.
+     * @return an empty string, as the worker's response is written straight to the servlet response as it arrives.
      */
     private Object singlePoint(Request request, Response response) {
         // Deserialize the task in the request body so we can see what kind of worker it wants.
@@ -136,9 +165,63 @@ public class BrokerController {
             // The default response format is our own compact grid representation.
             task.setFormat(TravelTimeSurfaceTask.Format.GRID);
         }
+
+        // Serialize the R5-specific task (not the original one the broker received from the UI) once, both to send to
+        // the worker and to look up the result of an identical task.
+        byte[] taskBytes;
+        try {
+            taskBytes = JsonUtil.objectMapper.writeValueAsBytes(task);
+        } catch (JsonProcessingException e) {
+            throw AnalysisServerException.unknown(e);
+        }
+        // Ask the worker to compress its response only if the UI accepts a compressed response, and stop the
+        // HttpClient from decompressing it, so that the response can be passed through to the UI exactly as the
+        // worker sent it. Spark must then not compress it again, so it is written straight to the servlet response.
+        String acceptEncoding = request.headers("Accept-Encoding");
+        String encoding = acceptEncoding != null && acceptEncoding.contains("gzip") ? "gzip" : "identity";
+
+        String cacheKey = SinglePointResultCache.key(taskBytes, encoding);
+        SinglePointResultCache.Result result = singlePointResults.get(cacheKey);
+        SinglePointResultCache.Claim claim = null;
+        if (result == null) {
+            claim = singlePointResults.claim(cacheKey);
+            if (!claim.owner) result = claim.await();
+        }
+        if (result != null) return writeSinglePointResult(response, result);
+        try {
+            return proxyToWorker(response, task, taskBytes, encoding, project, accessGroup, userEmail, claim);
+        } finally {
+            // Let any identical requests waiting for this one go ahead, if it did not get a result for them.
+            claim.complete(null);
+        }
+    }
+
+    /** Write a single point result that was kept from an earlier request to the UI. */
+    private static String writeSinglePointResult (Response response, SinglePointResultCache.Result result) {
+        HttpServletResponse rawResponse = response.raw();
+        rawResponse.setStatus(HttpStatus.OK_200);
+        if (result.contentType != null) rawResponse.setHeader(Headers.CONTENT_TYPE, result.contentType);
+        if (result.contentEncoding != null) rawResponse.setHeader(Headers.CONTENT_ENCODING, result.contentEncoding);
+        rawResponse.setContentLength(result.body.length);
+        try {
+            rawResponse.getOutputStream().write(result.body);
+            rawResponse.flushBuffer();
+        } catch (IOException e) {
+            LOG.info("The UI closed the connection before receiving a single point result.");
+        }
+        return "";
+    }
+
+    /**
+     * Send a single point task to a worker, passing the response through to the UI as it arrives. A successful
+     * response that is small enough is also kept in the result cache, completing the claim on it.
+     */
+    private Object proxyToWorker (Response response, TravelTimeSurfaceTask task, byte[] taskBytes, String encoding,
+                                  Project project, String accessGroup, String userEmail,
+                                  SinglePointResultCache.Claim claim) {
         WorkerCategory workerCategory = task.getWorkerCategory();
-        String address = broker.getWorkerAddress(workerCategory);
-        if (address == null) {
+        SinglePointWorker worker = broker.startSinglePointRequest(workerCategory, task.scenarioId);
+        if (worker == null) {
             // There are no workers that can handle this request. Request some.
             WorkerTags workerTags = new WorkerTags(accessGroup, userEmail, project._id, project.regionId);
             broker.createOnDemandWorkerInCategory(workerCategory, workerTags);
@@ -150,54 +233,118 @@ public class BrokerController {
             // FIXME the tracking of which workers are starting up should really be encapsulated using a "start up if needed" method.
             broker.recentlyRequestedWorkers.remove(workerCategory);
         }
-        String workerUrl = "http://" + address + ":7080/single";
-        LOG.info("Re-issuing HTTP request from UI to worker at {}", workerUrl);
+        if (worker == SinglePointWorker.BUSY) {
+            response.header("Retry-After", "5");
+            return jsonResponse(response, HttpStatus.ACCEPTED_202, "All routing servers for this network are busy. " +
+                    "Your request will be retried shortly.");
+        }
+        String workerUrl = "http://" + worker.address + ":7080/single";
+        LOG.info("Re-issuing HTTP request from UI to worker {} at {}", worker.workerId, workerUrl);
         HttpPost httpPost = new HttpPost(workerUrl);
         // httpPost.setHeader("Accept", "application/x-analysis-time-grid");
-        // TODO Explore: is this unzipping and re-zipping the result from the worker?
-        httpPost.setHeader("Accept-Encoding", "gzip");
+        httpPost.setHeader("Accept-Encoding", encoding);
+        httpPost.setConfig(RequestConfig.custom().setContentCompressionEnabled(false).build());
         HttpEntity entity = null;
+        boolean streamed = false;
         try {
-            // Serialize and send the R5-specific task (not the original one the broker received from the UI)
-            httpPost.setEntity(new ByteArrayEntity(JsonUtil.objectMapper.writeValueAsBytes(task)));
+            httpPost.setEntity(new ByteArrayEntity(taskBytes));
+            long startTime = System.currentTimeMillis();
             HttpResponse workerResponse = httpClient.execute(httpPost);
+            long firstByteTime = System.currentTimeMillis() - startTime;
+            broker.recordSinglePointLatency(worker, firstByteTime);
             // Mimic the status code sent by the worker.
             response.status(workerResponse.getStatusLine().getStatusCode());
-            // Mimic headers sent by the worker. We're mostly interested in Content-Type, maybe Content-Encoding.
+            // Mimic headers sent by the worker. We're only interested in Content-Type and Content-Encoding.
             // We do not want to mimic all headers like Date, Server etc.
-            Header contentTypeHeader = workerResponse.getFirstHeader(Headers.CONTENT_TYPE);
-            response.header(contentTypeHeader.getName(), contentTypeHeader.getValue());
+            HttpServletResponse rawResponse = response.raw();
+            for (String headerName : new String[] {Headers.CONTENT_TYPE, Headers.CONTENT_ENCODING}) {
+                Header header = workerResponse.getFirstHeader(headerName);
+                if (header != null) rawResponse.setHeader(header.getName(), header.getValue());
+            }
             LOG.info("Returning worker response to UI with status code {} and content type {}",
-                    workerResponse.getStatusLine(), contentTypeHeader.getValue());
-            // This header will cause the Spark Framework to gzip the data automatically if requested by the client.
-            response.header("Content-Encoding", "gzip");
+                    workerResponse.getStatusLine(), rawResponse.getContentType());
             entity = workerResponse.getEntity();
-            // If you return a stream to the Spark Framework, its SerializerChain will copy that stream out to the
-            // client, but does not then close the stream. HttpClient waits for the stream to be closed to return the
-            // connection to the pool. In order to be able to close the stream in code we control, we buffer the
-            // response in a byte buffer before resending it. NOTE: The fact that we're buffering before re-sending
-            // probably degrades the perceived responsiveness of single-point requests.
-            return ByteStreams.toByteArray(entity.getContent());
+            // Pipe the response out to the UI as it arrives. Returning the stream to the Spark Framework would leave
+            // it unclosed, so that HttpClient would never return the connection to its pool. A successful response is
+            // also copied for the result cache, unless it turns out to be too big to keep.
+            boolean keep = workerResponse.getStatusLine().getStatusCode() == HttpStatus.OK_200;
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            long nBytes = 0;
+            if (entity != null) {
+                OutputStream out = rawResponse.getOutputStream();
+                try (InputStream in = entity.getContent()) {
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                        try {
+                            out.write(buffer, 0, n);
+                            out.flush();
+                        } catch (IOException e) {
+                            throw new UiClosedException(e);
+                        }
+                        nBytes += n;
+                        if (keep && nBytes > SinglePointResultCache.MAX_RESULT_BYTES) {
+                            keep = false;
+                            copy = null;
+                        }
+                        if (keep) copy.write(buffer, 0, n);
+                    }
+                }
+            }
+            // Commit the response, so that Spark does not try to write a body of its own.
+            try {
+                rawResponse.flushBuffer();
+            } catch (IOException e) {
+                throw new UiClosedException(e);
+            }
+            streamed = true;
+            LOG.info("Worker responded after {} ms and sent {} bytes in {} ms", firstByteTime, nBytes,
+                    System.currentTimeMillis() - startTime);
+            if (keep) {
+                claim.complete(new SinglePointResultCache.Result(rawResponse.getContentType(),
+                        rawResponse.getHeader(Headers.CONTENT_ENCODING), copy.toByteArray()));
+            }
+            return "";
+        } catch (UiClosedException e) {
+            // The user moved on, for instance by dragging the origin elsewhere. This says nothing about the worker.
+            LOG.info("The UI closed the connection before receiving a single point result from worker {}.",
+                    worker.workerId);
+            return "";
         } catch (SocketTimeoutException ste) {
-            LOG.info("Timeout waiting for response from worker.");
+            LOG.info("Timeout waiting for response from worker {}.", worker.workerId);
+            broker.recordSinglePointFailure(worker, false);
             // Aborting the request might help release resources - we had problems with exhausting connection pools here.
             httpPost.abort();
             return jsonResponse(response, HttpStatus.BAD_REQUEST_400, "Routing server timed out. For the " +
                     "complexity of this scenario, your request may have too many simulated schedules. If you are " +
                     "using Routing Engine version < 4.5.1, your scenario may still be in preparation and you should " +
                     "try again in a few minutes.");
-        } catch (NoRouteToHostException nrthe){
-            LOG.info("Worker in category {} was previously cataloged but is not reachable now. This is expected if a " +
-                    "user made a single-point request within WORKER_RECORD_DURATION_MSEC after shutdown.", workerCategory);
+        } catch (NoRouteToHostException | ConnectException | ConnectTimeoutException e) {
+            LOG.info("Worker {} in category {} was previously cataloged but is not reachable now. This is expected if " +
+                    "a user made a single-point request within WORKER_RECORD_DURATION_MSEC after shutdown.",
+                    worker.workerId, workerCategory);
             httpPost.abort();
-            broker.unregisterSinglePointWorker(workerCategory);
+            broker.recordSinglePointFailure(worker, true);
             return jsonResponse(response, HttpStatus.ACCEPTED_202, "Switching routing server");
         } catch (Exception e) {
             throw AnalysisServerException.unknown(e);
         } finally {
+            // If the response was not passed through in full, because the worker or the UI closed the connection part
+            // way through, abort the request so that the connection is closed rather than reused.
+            if (!streamed) httpPost.abort();
             // If the HTTP response entity is non-null close the associated input stream, which causes the HttpClient
             // to release the TCP connection back to its pool. This is critical to avoid exhausting the pool.
             EntityUtils.consumeQuietly(entity);
+            broker.finishSinglePointRequest(worker);
+        }
+    }
+
+    /**
+     * Thrown when writing a worker's response to the UI fails, so that it can be told apart from failures to read
+     * the response from the worker.
+     */
+    private static class UiClosedException extends IOException {
+        UiClosedException (IOException cause) {
+            super(cause);
         }
     }
 
@@ -246,18 +393,24 @@ public class BrokerController {
         }
 
         Collection<JobStatus> jobStatuses = broker.getJobSummary();
-        for (JobStatus jobStatus : jobStatuses) {
-            if (!jobStatus.jobId.equals("SUM")) {
-                RegionalAnalysis analysis = Persistence.regionalAnalyses.find(
-                        QueryBuilder.start("_id").is(jobStatus.jobId).get(),
-                        DBProjection.exclude("request.scenario.modifications")
-                ).next();
+        addRegionalAnalyses(jobStatuses);
+        return jsonResponse(response, HttpStatus.OK_200, jobStatuses);
+    }
 
-                jobStatus.regionalAnalysis = analysis;
-            }
+    /**
+     * Attach the regional analysis of each job to its status, fetching all of them in one query. Only the fields
+     * shown in the job list are fetched, leaving out the request with its scenario, which can be large.
+     */
+    static void addRegionalAnalyses (Collection<JobStatus> jobStatuses) {
+        Set<String> jobIds = jobStatuses.stream()
+                .map(jobStatus -> jobStatus.jobId)
+                .filter(jobId -> !jobId.equals("SUM"))
+                .collect(Collectors.toSet());
+        Map<String, RegionalAnalysis> analyses = Persistence.regionalAnalyses.findByIds(jobIds,
+                DBProjection.include("name", "regionId", "projectId", "accessGroup", "createdBy", "createdAt"));
+        for (JobStatus jobStatus : jobStatuses) {
+            jobStatus.regionalAnalysis = analyses.get(jobStatus.jobId);
         }
-
-        return jsonResponse(response, HttpStatus.OK_200, jobStatuses);
     }
 
     /**
@@ -271,27 +424,94 @@ public class BrokerController {
         }
 
         Collection<WorkerObservation> observations = broker.getWorkerObservations();
-        Map<String, Bundle> bundleForNetworkId = new HashMap<>();
+        addBundles(observations);
+        return jsonResponse(response, HttpStatus.OK_200, observations);
+    }
+
+    /**
+     * Attach the bundles of the networks each worker has loaded to its observation, fetching all of them in one
+     * query. Only the fields shown in the worker list are fetched, leaving out the feed summaries. A bundle for a
+     * network may have been deleted, in which case it is left out.
+     */
+    static void addBundles (Collection<WorkerObservation> observations) {
+        Set<String> networkIds = new HashSet<>();
+        for (WorkerObservation observation : observations) networkIds.addAll(observation.status.networks);
+        Map<String, Bundle> bundles = Persistence.bundles.findByIds(networkIds,
+                DBProjection.include("name", "regionId", "accessGroup", "status"));
         for (WorkerObservation observation : observations) {
-            List<Bundle> bundles = new ArrayList<>();
-            for (String networkId : observation.status.networks) {
-                Bundle bundle = bundleForNetworkId.get(networkId);
-                if (bundle == null) {
-                    DBCursor<Bundle> cursor = Persistence.bundles.find(QueryBuilder.start("_id").is(networkId).get());
-                    // Bundle for a network may have been deleted
-                    if (cursor.hasNext()) {
-                        bundle = cursor.next();
-                        bundleForNetworkId.put(networkId, bundle);
-                    }
-                }
-                if (bundle != null) {
-                    bundles.add(bundle);
-                }
-            }
-            observation.bundles = bundles;
+            observation.bundles = observation.status.networks.stream()
+                    .map(bundles::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
         }
+    }
 
-        return jsonResponse(response, HttpStatus.OK_200, observations);
+    /**
+     * Report the size and hit rate of the cache of each database collection that has one, of the single point
+     * result cache and of the compiled scenario cache, as JSON.
+     */
+    private String getCacheStatistics(Request request, Response response) {
+        String accessGroup = request.attribute("accessGroup");
+        if (!AnalysisServerConfig.adminAccessGroup.equals(accessGroup)) {
+            response.status(401);
+            return "You do not have access.";
+        }
+
+        Map<String, Object> statistics = new TreeMap<>(Persistence.getCacheStatistics());
+        statistics.put("single-point-results", singlePointResults.getStatistics());
+        statistics.put("compiled-scenarios", CompiledScenario.getStatistics());
+        return jsonResponse(response, HttpStatus.OK_200, statistics);
+    }
+
+    /**
+     * Report the hit rate of the cache of verified authentication tokens and how long verifying a token takes, as JSON.
+     */
+    private String getAuthenticationStatistics(Request request, Response response) {
+        String accessGroup = request.attribute("accessGroup");
+        if (!AnalysisServerConfig.adminAccessGroup.equals(accessGroup)) {
+            response.status(401);
+            return "You do not have access.";
+        }
+
+        TokenCache.Statistics statistics = AnalysisServer.getTokenCacheStatistics();
+        if (statistics == null) {
+            return jsonResponse(response, HttpStatus.OK_200, "Tokens are not verified when working offline.");
+        }
+        return jsonResponse(response, HttpStatus.OK_200, statistics);
+    }
+
+    /**
+     * Workers can use this endpoint to fetch the scenario of a regional analysis by ID, rather than from S3. A scenario
+     * never changes once published, so its ETag is derived from its name alone and clients may cache it indefinitely.
+     * The scenario is compressed if the client accepts gzip. It is written straight to the servlet response, which
+     * Spark does not compress, so it is compressed here.
+     */
+    private Object getScenario (Request request, Response response) throws IOException {
+        String bundleId = request.params("bundleId");
+        String scenarioId = request.params("scenarioId");
+        File scenarioFile = ScenarioPublisher.getScenarioFile(bundleId, scenarioId);
+        if (scenarioFile == null) {
+            throw AnalysisServerException.notFound("Scenario " + scenarioId + " of bundle " + bundleId + " not found.");
+        }
+        String etag = HttpUtil.etag(ScenarioPublisher.fileName(bundleId, scenarioId));
+        response.header("Vary", "Accept-Encoding");
+        if (HttpUtil.notModified(request, response, etag)) return "";
+
+        response.type("application/json; charset=utf-8");
+        response.header("Cache-Control", "public, max-age=31536000, immutable");
+        String acceptEncoding = request.headers("Accept-Encoding");
+        HttpServletResponse rawResponse = response.raw();
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response.header("Content-Encoding", "gzip");
+            GZIPOutputStream out = new GZIPOutputStream(rawResponse.getOutputStream());
+            Files.copy(scenarioFile.toPath(), out);
+            out.finish();
+        } else {
+            rawResponse.setContentLengthLong(scenarioFile.length());
+            Files.copy(scenarioFile.toPath(), rawResponse.getOutputStream());
+        }
+        rawResponse.flushBuffer();
+        return "";
     }
 
     /**
@@ -2,41 +2,50 @@ package com.conveyal.taui.controllers;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.conveyal.gtfs.GTFSCache;
 import com.conveyal.gtfs.api.ApiMain;
 import com.conveyal.gtfs.api.models.FeedSource;
-import com.conveyal.gtfs.model.Stop;
 import com.conveyal.r5.analyst.cluster.BundleManifest;
 import com.conveyal.r5.util.ExceptionUtils;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.AnalysisServerException;
 import com.conveyal.taui.ExecutorServices;
+import com.conveyal.taui.analysis.NetworkPrebuilder;
 import com.conveyal.taui.models.Bundle;
+import com.conveyal.taui.persistence.MongoMap;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.HttpUtil;
 import com.conveyal.taui.util.JsonUtil;
+import com.conveyal.taui.util.MultipartUpload;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.mongodb.DBObject;
+import com.mongodb.QueryBuilder;
 import com.vividsolutions.jts.geom.Envelope;
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static spark.Spark.delete;
@@ -54,19 +63,25 @@ public class BundleController {
             .withRegion(AnalysisServerConfig.awsRegion)
             .build();
 
+    /** The most feeds that will be loaded at once. Each uses a lot of memory while it is being loaded. */
+    private static final int MAX_CONCURRENT_FEEDS = 4;
+
+    /** How often the progress of a bundle that is being loaded is saved to the database. */
+    private static final long PROGRESS_UPDATE_INTERVAL_MSEC = 2000;
+
+    private static final ExecutorService feedLoader = Executors.newFixedThreadPool(MAX_CONCURRENT_FEEDS);
+
     public static Bundle create (Request req, Response res) {
-        ServletFileUpload sfu = new ServletFileUpload(fileItemFactory);
+        // Each feed is checked as soon as it arrives, so a wrong file fails the upload before the rest is received.
+        final MultipartUpload upload = MultipartUpload.receive(req, BundleController::checkIsZip);
 
         // create the bundle
-        Map<String, List<FileItem>> files;
         final Bundle bundle = new Bundle();
-        try {
-            files = sfu.parseParameterMap(req.raw());
-
-            bundle.name = files.get("Name").get(0).getString("UTF-8");
-            bundle.regionId = files.get("regionId").get(0).getString("UTF-8");
-        } catch (Exception e) {
-            throw AnalysisServerException.badRequest(ExceptionUtils.asString(e));
+        bundle.name = upload.getString("Name");
+        bundle.regionId = upload.getString("regionId");
+        if (bundle.name == null || bundle.regionId == null) {
+            upload.delete();
+            throw AnalysisServerException.badRequest("Bundle upload must include a Name and regionId.");
         }
 
         bundle.status = Bundle.Status.PROCESSING_GTFS;
@@ -77,21 +92,15 @@ public class BundleController {
 
         Persistence.bundles.create(bundle);
 
-        File bundleFile = null;
         File directory = Files.createTempDir();
         List<File> localFiles = new ArrayList<>();
+        List<String> localFileHashes = new ArrayList<>();
         try {
-            // cache bundle on disk to avoid OOME
-            bundleFile = File.createTempFile(bundle._id, ".zip");
-
-            ObjectMetadata om = new ObjectMetadata();
-            om.setContentType("application/zip");
-
             Set<String> usedFileNames = new HashSet<>();
 
-            for (FileItem fi : files.get("files")) {
+            for (MultipartUpload.UploadedFile uploadedFile : upload.getFiles("files")) {
                 // create a unique, safe file name
-                String baseName = fi.getName().replace(".zip", "").replaceAll("[^a-zA-Z0-9]", "-");
+                String baseName = uploadedFile.name.replace(".zip", "").replaceAll("[^a-zA-Z0-9]", "-");
                 String fname = baseName;
 
                 int i = 0;
@@ -108,44 +117,71 @@ public class BundleController {
 
                 fname += ".zip";
 
+                // The feed was already written once as it was received, so just move it rather than copying it.
                 File localFile = new File(directory, fname);
-                fi.write(localFile);
+                if (!uploadedFile.file.renameTo(localFile)) {
+                    throw new IOException("Unable to move uploaded feed " + uploadedFile.name);
+                }
                 localFiles.add(localFile);
+                localFileHashes.add(uploadedFile.sha256);
             }
-
-            // don't run out of disk space
-            bundleFile.delete();
         } catch (Exception e) {
             bundle.status = Bundle.Status.ERROR;
             bundle.errorCode = ExceptionUtils.asString(e);
             Persistence.bundles.put(bundle);
-            bundleFile.delete();
 
             throw AnalysisServerException.unknown(e);
+        } finally {
+            upload.delete();
         }
 
         // process async
         ExecutorServices.heavy.execute(() -> {
             try {
-                Set<String> seenFeedIds = new HashSet<>();
+                bundle.totalFeeds = localFiles.size();
+
+                // Load the feeds concurrently. Progress is written to the database at most every few seconds.
+                CompletionService<Bundle.FeedSummary> completionService = new ExecutorCompletionService<>(feedLoader);
+                List<Future<Bundle.FeedSummary>> feedSummaries = new ArrayList<>();
+                for (int i = 0; i < localFiles.size(); i++) {
+                    File file = localFiles.get(i);
+                    String sha256 = localFileHashes.get(i);
+                    feedSummaries.add(completionService.submit(() -> loadFeed(bundle._id, file, sha256)));
+                }
+                try {
+                    long lastProgressUpdate = System.currentTimeMillis();
+                    for (int i = 0; i < feedSummaries.size(); i++) {
+                        completionService.take().get();
+                        bundle.feedsComplete += 1;
+                        if (System.currentTimeMillis() - lastProgressUpdate > PROGRESS_UPDATE_INTERVAL_MSEC) {
+                            // Done in a loop the nonce and updatedAt would be changed repeatedly
+                            Persistence.bundles.modifiyWithoutUpdatingLock(bundle);
+                            lastProgressUpdate = System.currentTimeMillis();
+                        }
+                    }
+                } finally {
+                    // If any feed failed, don't start loading the ones still waiting.
+                    feedSummaries.forEach(f -> f.cancel(false));
+                }
 
+                // Merge the feeds in the order they were uploaded.
+                Set<String> seenFeedIds = new HashSet<>();
                 Envelope bundleBounds = new Envelope();
                 bundle.serviceStart = LocalDate.MAX;
                 bundle.serviceEnd = LocalDate.MIN;
                 bundle.feeds = new ArrayList<>();
-                bundle.totalFeeds = localFiles.size();
 
-                for (File file : localFiles) {
-                    FeedSource fs = ApiMain.registerFeedSource(feed -> String.format("%s_%s", feed.feedId, bundle._id), file);
-                    if (seenFeedIds.contains(fs.feed.feedId)) {
+                for (Future<Bundle.FeedSummary> future : feedSummaries) {
+                    Bundle.FeedSummary feedSummary = future.get();
+                    if (!seenFeedIds.add(feedSummary.feedId)) {
                         throw new Exception("Duplicate Feed ID found when uploading bundle");
                     }
-
-                    Bundle.FeedSummary feedSummary  = new Bundle.FeedSummary(fs.feed, bundle._id);
                     bundle.feeds.add(feedSummary);
 
-                    for (Stop s : fs.feed.stops.values()) {
-                        bundleBounds.expandToInclude(s.stop_lon, s.stop_lat);
+                    // A feed with no stops has empty bounds, which must not be merged.
+                    if (feedSummary.bounds.west <= feedSummary.bounds.east) {
+                        bundleBounds.expandToInclude(feedSummary.bounds.west, feedSummary.bounds.south);
+                        bundleBounds.expandToInclude(feedSummary.bounds.east, feedSummary.bounds.north);
                     }
 
                     if (bundle.serviceStart.isAfter(feedSummary.serviceStart)) {
@@ -155,11 +191,6 @@ public class BundleController {
                     if (bundle.serviceEnd.isBefore(feedSummary.serviceEnd)) {
                         bundle.serviceEnd = feedSummary.serviceEnd;
                     }
-
-                    bundle.feedsComplete += 1;
-
-                    // Done in a loop the nonce and updatedAt would be changed repeatedly
-                    Persistence.bundles.modifiyWithoutUpdatingLock(bundle);
                 }
 
                 // TODO Handle crossing the antimeridian
@@ -183,11 +214,63 @@ public class BundleController {
 
             Persistence.bundles.put(bundle);
             directory.delete();
+
+            if (bundle.status == Bundle.Status.DONE && AnalysisServerConfig.prebuildNetworks) {
+                NetworkPrebuilder.prebuild(bundle);
+            }
         });
 
         return bundle;
     }
 
+    /**
+     * Load one feed of a bundle, called on the feed loader threads. If a feed with the same contents has already been
+     * loaded for another bundle, its summary is reused, along with the copy of the feed already in the GTFS cache and
+     * on S3, rather than processing it again.
+     */
+    private static Bundle.FeedSummary loadFeed (String bundleId, File file, String sha256) throws Exception {
+        Bundle.FeedSummary loaded = findLoadedFeed(sha256);
+        if (loaded != null) {
+            LOG.info("Feed {} was already loaded as {}, reusing it", file.getName(), loaded.bundleScopedFeedId);
+            if (loaded.bounds == null || loaded.activeDates == null) {
+                // Summaries from before these were recorded. This reads the cached feed, but does not reprocess it.
+                FeedSource fs = ApiMain.getFeedSource(loaded.bundleScopedFeedId);
+                loaded.computeBounds(fs.feed);
+                loaded.setServiceDates(fs.feed);
+            }
+            return loaded;
+        }
+
+        FeedSource fs = ApiMain.registerFeedSource(feed -> Bundle.bundleScopeFeedId(feed.feedId, bundleId), file);
+        Bundle.FeedSummary feedSummary = new Bundle.FeedSummary(fs.feed, bundleId);
+        feedSummary.sha256 = sha256;
+        return feedSummary;
+    }
+
+    /** @return a copy of the summary of a successfully loaded feed with the given hash, or null if there is none. */
+    private static Bundle.FeedSummary findLoadedFeed (String sha256) {
+        List<Bundle> bundles = Persistence.bundles.find(QueryBuilder.start("feeds.sha256").is(sha256)
+                .and("status").is(Bundle.Status.DONE.toString()).get()).limit(1).toArray();
+        if (bundles.isEmpty()) return null;
+        return bundles.get(0).feeds.stream()
+                .filter(f -> sha256.equals(f.sha256))
+                .findFirst()
+                .map(Bundle.FeedSummary::clone)
+                .orElse(null);
+    }
+
+    /** Reject anything uploaded as a feed that does not start with the signature of a zip file. */
+    private static void checkIsZip (MultipartUpload.UploadedFile uploadedFile) {
+        if (!"files".equals(uploadedFile.fieldName)) return;
+        byte[] signature = new byte[2];
+        try (InputStream is = new FileInputStream(uploadedFile.file)) {
+            if (ByteStreams.read(is, signature, 0, 2) == 2 && signature[0] == 'P' && signature[1] == 'K') return;
+        } catch (IOException e) {
+            throw AnalysisServerException.fileUpload(ExceptionUtils.asString(e));
+        }
+        throw AnalysisServerException.fileUpload(uploadedFile.name + " is not a zipped GTFS feed.");
+    }
+
     private static void writeManifestToCache (Bundle bundle) throws IOException {
         BundleManifest manifest = new BundleManifest();
         manifest.osmId = bundle.regionId;
@@ -219,37 +302,62 @@ public class BundleController {
     }
 
     public static Bundle getBundle (Request req, Response res) {
-        Bundle bundle = Persistence.bundles.findByIdFromRequestIfPermitted(req);
+        return Persistence.bundles.findByIdFromRequestIfPermitted(req);
+    }
 
-        // Progressively update older bundles with service start and end dates on retrieval
+    /**
+     * @return whether each feed of a bundle has service on the date in the request, by bundle scoped feed ID. This is
+     * answered from the bitmaps of active dates in the feed summaries, without loading any feeds.
+     */
+    public static Map<String, Boolean> getServiceOnDate (Request req, Response res) {
+        Bundle bundle = Persistence.bundles.findByIdFromRequestIfPermitted(req);
+        LocalDate date;
         try {
-            setBundleServiceDates(bundle);
-        } catch (Exception e) {
-            throw AnalysisServerException.unknown(e);
+            date = LocalDate.parse(req.params("date"));
+        } catch (DateTimeParseException e) {
+            throw AnalysisServerException.badRequest("Dates must be in the format YYYY-MM-DD.");
         }
-
-        return bundle;
+        Map<String, Boolean> service = new LinkedHashMap<>();
+        for (Bundle.FeedSummary summary : bundle.feeds) {
+            service.put(summary.bundleScopedFeedId, summary.hasServiceOn(date));
+        }
+        return service;
     }
 
-    public static Collection<Bundle> getBundles (Request req, Response res) {
-        return Persistence.bundles.findPermittedForQuery(req);
+    public static String getBundles (Request req, Response res) throws IOException {
+        DBObject query = MongoMap.queryFromParams(req);
+        // The progress of a bundle being processed is saved without updating its nonce, so is part of the version.
+        String version = Persistence.bundles.pageVersion(query, req,
+                "status", "feedsComplete", "errorCode", "networkSize", "feeds.activeDates");
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(version))) return "";
+        return JsonUtil.writeJsonArray(Persistence.bundles.findPermittedPage(query, null, req), res);
     }
 
     /**
-     * Bundles created before 2018-10-04 do not have service start and end dates. This method sets the service start
-     * and end dates for bundles that are DONE and do not have them set already. A database migration wasn't done due to
-     * the need to load feeds which is a heavy operation. Duplicate functionality exists in the Bundle.FeedSummary
-     * constructor and these dates will be automatically set for all new Bundles.
+     * Bundles created before 2018-10-04 do not have service start and end dates, and bundles created before the dates
+     * of service were recorded as bitmaps do not have those. This loads the feeds of any such bundles once, so that
+     * the dates never need to be computed from the GTFS when a bundle is read. A database migration wasn't done due to
+     * the need to load feeds which is a heavy operation, so this is run in the background when the server starts.
      */
-    public static Bundle setBundleServiceDates (Bundle bundle) throws Exception {
-        if (bundle.status != Bundle.Status.DONE || (bundle.serviceStart != null && bundle.serviceEnd != null)) return bundle;
+    public static void addMissingServiceDates () {
+        List<Bundle> bundles = Persistence.bundles.find(QueryBuilder.start("status").is(Bundle.Status.DONE.toString())
+                .and("feeds").elemMatch(QueryBuilder.start("activeDates").exists(false).get()).get()).toArray();
+        for (Bundle bundle : bundles) {
+            try {
+                setBundleServiceDates(bundle);
+            } catch (Exception e) {
+                LOG.error("Unable to compute the dates of service of {}: {}", bundle, ExceptionUtils.asString(e));
+            }
+        }
+    }
 
+    private static void setBundleServiceDates (Bundle bundle) {
+        LOG.info("Computing the dates of service of {}", bundle);
         bundle.serviceStart = LocalDate.MAX;
         bundle.serviceEnd = LocalDate.MIN;
 
         for (Bundle.FeedSummary summary : bundle.feeds) {
-            // Compute the feed start and end dates
-            if (summary.serviceStart == null || summary.serviceEnd == null) {
+            if (summary.activeDates == null) {
                 FeedSource fs = ApiMain.getFeedSource(Bundle.bundleScopeFeedId(summary.feedId, bundle._id));
                 summary.setServiceDates(fs.feed);
             }
@@ -262,17 +370,16 @@ public class BundleController {
             }
         }
 
-        // Automated change that could occur on a `get`, so don't update the nonce
-        return Persistence.bundles.modifiyWithoutUpdatingLock(bundle);
+        // Automated change, so don't update the nonce
+        Persistence.bundles.modifiyWithoutUpdatingLock(bundle);
     }
 
     public static void register () {
-        get("/api/bundle", BundleController::getBundles, JsonUtil.objectMapper::writeValueAsString);
+        get("/api/bundle", BundleController::getBundles);
         get("/api/bundle/:_id", BundleController::getBundle, JsonUtil.objectMapper::writeValueAsString);
+        get("/api/bundle/:_id/service/:date", BundleController::getServiceOnDate, JsonUtil.objectMapper::writeValueAsString);
         post("/api/bundle", BundleController::create, JsonUtil.objectMapper::writeValueAsString);
         put("/api/bundle/:_id", BundleController::update, JsonUtil.objectMapper::writeValueAsString);
         delete("/api/bundle/:_id", BundleController::deleteBundle, JsonUtil.objectMapper::writeValueAsString);
     }
-
-    private static FileItemFactory fileItemFactory = new DiskFileItemFactory();
 }
@@ -9,20 +9,32 @@ import com.conveyal.gtfs.model.FeedInfo;
 import com.conveyal.taui.AnalysisServerException;
 import com.conveyal.taui.models.Bundle;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.BatchLoader;
 import com.conveyal.taui.util.JsonUtil;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.mongodb.QueryBuilder;
 import graphql.ExceptionWhileDataFetching;
 import graphql.ExecutionResult;
-import graphql.GraphQL;
+import graphql.ExecutionResultImpl;
 import graphql.GraphQLError;
+import graphql.execution.Execution;
 import graphql.execution.ExecutionContext;
+import graphql.execution.ExecutionStrategy;
+import graphql.execution.SimpleExecutionStrategy;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.Selection;
+import graphql.parser.Parser;
 import graphql.schema.DataFetchingEnvironment;
 import graphql.schema.GraphQLEnumType;
 import graphql.schema.GraphQLList;
 import graphql.schema.GraphQLObjectType;
 import graphql.schema.GraphQLSchema;
+import graphql.validation.ValidationError;
+import graphql.validation.Validator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
@@ -32,6 +44,8 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import static com.conveyal.gtfs.api.graphql.GraphQLGtfsSchema.routeType;
@@ -60,7 +74,7 @@ public class GraphQLController {
         QueryContext context = new QueryContext();
         context.accessGroup = req.attribute("accessGroup");
 
-        ExecutionResult er = graphql.execute(req.queryParams("query"), null, context, variables);
+        ExecutionResult er = execute(req.queryParams("query"), context, variables);
 
         List<GraphQLError> errs = er.getErrors();
         errs.addAll(context.getErrors());
@@ -71,6 +85,29 @@ public class GraphQLController {
         return er.getData();
     }
 
+    /**
+     * Execute a query, reusing the parsed and validated form of the query if it has been seen recently. The UI sends
+     * the same few queries over and over with different variables, so they need not be parsed and validated each
+     * time as GraphQL.execute would.
+     */
+    private static ExecutionResult execute (String query, QueryContext context, Map<String, Object> variables) {
+        if (query == null) throw AnalysisServerException.badRequest("A GraphQL query is required.");
+        Document document = parsedQueries.getIfPresent(query);
+        if (document == null) {
+            try {
+                document = new Parser().parseDocument(query);
+            } catch (RuntimeException e) {
+                // The parser bails out with a ParseCancellationException on syntax errors, but building the document
+                // from a partial parse tree can fail in other ways, all of which mean the query itself is malformed.
+                throw AnalysisServerException.badRequest("Invalid GraphQL query. " + e.getMessage());
+            }
+            List<ValidationError> validationErrors = new Validator().validateDocument(schema, document);
+            if (!validationErrors.isEmpty()) return new ExecutionResultImpl(validationErrors);
+            parsedQueries.put(query, document);
+        }
+        return new Execution(executionStrategy, executionStrategy).execute(schema, context, document, null, variables);
+    }
+
     /** Special feed type that also includes checksum */
     public static GraphQLObjectType feedType = newObject()
             .name("feed")
@@ -139,32 +176,62 @@ public class GraphQLController {
             .build();
 
     public static GraphQLSchema schema = GraphQLSchema.newSchema().query(bundleQuery).build();
-    private static GraphQL graphql = new GraphQL(schema);
 
+    private static final ExecutionStrategy executionStrategy = new SimpleExecutionStrategy();
+
+    /** The most distinct queries whose parsed and validated form is kept. */
+    private static final int MAX_PARSED_QUERIES = 100;
+
+    private static final Cache<String, Document> parsedQueries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_PARSED_QUERIES)
+            .build();
+
+    /** The most feeds that will be loaded from the feed cache at once for a single query. */
+    private static final int MAX_CONCURRENT_FEEDS = 4;
+
+    private static final ExecutorService feedLoader = Executors.newFixedThreadPool(MAX_CONCURRENT_FEEDS);
+
+    /**
+     * Fetch the requested bundles, and if the query asks for their feeds start loading all of them at once, so that by
+     * the time the feeds of each bundle are fetched they are already loaded or loading.
+     */
     private static Collection<Bundle> fetchBundle(DataFetchingEnvironment environment) {
         QueryContext context = (QueryContext) environment.getContext();
-        return Persistence.bundles.findPermitted(
+        Collection<Bundle> bundles = Persistence.bundles.findPermitted(
                 QueryBuilder.start("_id").in(environment.getArgument("bundle_id")).get(),
                 context.accessGroup
         );
+        if (selectsFeeds(environment)) {
+            context.feedSources.enqueue(bundles.stream()
+                    .flatMap(bundle -> bundle.feeds.stream().map(f -> Bundle.bundleScopeFeedId(f.feedId, bundle._id)))
+                    .collect(Collectors.toList()));
+        }
+        return bundles;
+    }
+
+    /**
+     * Whether the query selects the feeds of the bundles being fetched. Fragments are not resolved here, so any
+     * selection that is not a plain field is assumed to select the feeds.
+     */
+    private static boolean selectsFeeds (DataFetchingEnvironment environment) {
+        for (Field field : environment.getFields()) {
+            if (field.getSelectionSet() == null) continue;
+            for (Selection selection : field.getSelectionSet().getSelections()) {
+                if (!(selection instanceof Field) || "feeds".equals(((Field) selection).getName())) return true;
+            }
+        }
+        return false;
     }
 
     private static List<WrappedGTFSEntity<FeedInfo>> fetchFeeds(DataFetchingEnvironment environment) {
         Bundle bundle = (Bundle) environment.getSource();
-        ExecutionContext context = (ExecutionContext) environment.getContext();
-
-        // Old bundles were created without computing the service start and end dates. Will only compute if needed.
-        try {
-            BundleController.setBundleServiceDates(bundle);
-        } catch (Exception e) {
-            context.addError(new ExceptionWhileDataFetching(e));
-        }
+        QueryContext context = (QueryContext) environment.getContext();
 
         return bundle.feeds.stream()
                 .map(summary -> {
                     String bundleScopedFeedId = Bundle.bundleScopeFeedId(summary.feedId, bundle._id);
                     try {
-                        FeedSource fs = ApiMain.getFeedSource(bundleScopedFeedId);
+                        FeedSource fs = context.feedSources.get(bundleScopedFeedId);
                         FeedInfo ret;
                         if (fs != null && fs.feed.feedInfo.size() > 0)
                             ret = fs.feed.feedInfo.values().iterator().next();
@@ -193,8 +260,10 @@ public class GraphQLController {
         get("/api/graphql", GraphQLController::handleQuery, JsonUtil.objectMapper::writeValueAsString);
     }
 
-    /** Context for a graphql query. Currently contains auth info */
+    /** Context for a graphql query. Contains auth info and the feeds loaded for this query. */
     public static class QueryContext extends ExecutionContext {
         public String accessGroup;
+
+        final BatchLoader<String, FeedSource> feedSources = new BatchLoader<>(ApiMain::getFeedSource, feedLoader);
     }
 }
@@ -4,7 +4,9 @@ import com.conveyal.taui.models.AbstractTimetable;
 import com.conveyal.taui.models.AddTripPattern;
 import com.conveyal.taui.models.ConvertToFrequency;
 import com.conveyal.taui.models.Modification;
+import com.conveyal.taui.persistence.MongoMap;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.HttpUtil;
 import com.conveyal.taui.util.JsonUtil;
 import org.bson.types.ObjectId;
 import spark.Request;
@@ -25,8 +27,10 @@ import static spark.Spark.put;
  * Controller for persisting modifications.
  */
 public class ModificationController {
-    public static Modification getModification (Request req, Response res) {
-        return Persistence.modifications.findByIdFromRequestIfPermitted(req);
+    public static String getModification (Request req, Response res) throws IOException {
+        Modification modification = Persistence.modifications.findByIdFromRequestIfPermitted(req);
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(MongoMap.version(modification)))) return "";
+        return JsonUtil.objectMapper.writeValueAsString(modification);
     }
 
     public static Modification create (Request request, Response response) throws IOException {
@@ -83,7 +87,7 @@ public class ModificationController {
     }
 
     public static void register () {
-        get("/api/modification/:_id", ModificationController::getModification, JsonUtil.objectMapper::writeValueAsString);
+        get("/api/modification/:_id", ModificationController::getModification);
         post("/api/modification/:_id/copy", ModificationController::copyModification, JsonUtil.objectMapper::writeValueAsString);
         post("/api/modification", ModificationController::create, JsonUtil.objectMapper::writeValueAsString);
         // option to get any configured cors headers
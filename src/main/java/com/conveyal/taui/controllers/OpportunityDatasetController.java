@@ -8,25 +8,28 @@ import com.conveyal.r5.util.ExceptionUtils;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.AnalysisServerException;
 import com.conveyal.taui.ExecutorServices;
+import com.conveyal.taui.grids.CsvGridBuilder;
 import com.conveyal.taui.grids.GridExporter;
+import com.conveyal.taui.grids.GridStore;
 import com.conveyal.taui.grids.SeamlessCensusGridExtractor;
+import com.conveyal.taui.grids.ShapefileRasterizer;
 import com.conveyal.taui.models.OpportunityDataset;
 import com.conveyal.taui.models.Region;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.HttpUtil;
 import com.conveyal.taui.util.JsonUtil;
-import com.google.common.io.Files;
+import com.conveyal.taui.util.MultipartUpload;
+import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.LocalDateTime;
@@ -37,6 +40,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
@@ -59,8 +64,6 @@ public class OpportunityDatasetController {
 
     private static final String BUCKET = AnalysisServerConfig.gridBucket;
 
-    private static final FileItemFactory fileItemFactory = new DiskFileItemFactory();
-
     /**
      * Store upload status objects
      */
@@ -74,11 +77,11 @@ public class OpportunityDatasetController {
         );
     }
 
-    public static Collection<OpportunityDataset> getRegionDatasets(Request req, Response res) {
-        return Persistence.opportunityDatasets.findPermitted(
-                QueryBuilder.start("regionId").is(req.params("regionId")).get(),
-                req.attribute("accessGroup")
-        );
+    public static String getRegionDatasets(Request req, Response res) throws IOException {
+        DBObject query = QueryBuilder.start("regionId").is(req.params("regionId")).get();
+        String version = Persistence.opportunityDatasets.pageVersion(query, req);
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(version))) return "";
+        return JsonUtil.writeJsonArray(Persistence.opportunityDatasets.findPermittedPage(query, null, req), res);
     }
 
     public static Object getOpportunityDataset(Request req, Response res) {
@@ -128,6 +131,11 @@ public class OpportunityDatasetController {
         return status;
     }
 
+    /**
+     * Store an opportunity dataset for each of the given grids. The grids are hashed, compressed and uploaded to S3
+     * concurrently by GridStore, skipping any already stored, with the status updated as each completes. The database
+     * records referring to them are then all inserted at once.
+     */
     public static List<OpportunityDataset> createDatasetsFromGrids (String email, String accessGroup, String sourceName, String regionId, OpportunityDatasetUploadStatus status, Map<String, Grid> grids) {
         final String sourceId = new ObjectId().toString();
 
@@ -135,10 +143,7 @@ public class OpportunityDatasetController {
         status.totalGrids = grids.size();
 
         List<OpportunityDataset> ods = new ArrayList<>();
-        grids.entrySet().forEach(e -> {
-            String name = e.getKey();
-            Grid grid = e.getValue();
-
+        grids.forEach((name, grid) -> {
             OpportunityDataset dataset = new OpportunityDataset();
             dataset.sourceName = sourceName;
             dataset.sourceId = sourceId;
@@ -146,14 +151,35 @@ public class OpportunityDatasetController {
             dataset.createdBy = email;
             dataset.accessGroup = accessGroup;
             dataset.regionId = regionId;
-
-            ods.add(createOpportunityDatasetFromGrid(dataset, grid, status));
+            setPropertiesFromGrid(dataset, grid);
+            ods.add(dataset);
         });
 
+        // Store the grids under their content hashes, then the datasets referring to them.
+        Map<String, String> hashesByName = new ConcurrentHashMap<>();
+        try {
+            GridStore.storeAll(grids, s3, BUCKET, name -> {
+                int uploaded = status.gridUploaded();
+                LOG.info("Completed {}/{} uploads for {}", uploaded, status.totalGrids, status.name);
+            }, hashesByName).join();
+            for (OpportunityDataset dataset : ods) dataset.contentHash = hashesByName.get(dataset.name);
+            Persistence.opportunityDatasets.createAll(ods);
+            status.status = Status.DONE;
+            status.completed();
+        } catch (Exception e) {
+            // No dataset refers to any of these grids, so give up the references taken while storing them.
+            hashesByName.values().forEach(hash -> GridStore.release(hash, s3, BUCKET));
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            status.status = Status.ERROR;
+            status.message = ExceptionUtils.asString(cause);
+            status.completed();
+            throw AnalysisServerException.unknown(e);
+        }
+
         return ods;
     }
 
-    public static OpportunityDataset createOpportunityDatasetFromGrid (OpportunityDataset dataset, Grid grid, OpportunityDatasetUploadStatus status) {
+    private static void setPropertiesFromGrid (OpportunityDataset dataset, Grid grid) {
         double totalOpportunities = 0;
         for (int i = 0; i < grid.grid.length; i++) {
             for (int j = 0; j < grid.grid[i].length; j++) {
@@ -161,35 +187,12 @@ public class OpportunityDatasetController {
             }
         }
 
-        // Create new opportunity dataset object
         dataset.bucketName = BUCKET;
         dataset.north = grid.north;
         dataset.west = grid.west;
         dataset.width = grid.width;
         dataset.height = grid.height;
         dataset.totalOpportunities = totalOpportunities;
-
-        // Store in the database
-        Persistence.opportunityDatasets.create(dataset);
-
-        // Upload to S3
-        try {
-            GridExporter.writeToS3(grid, s3, dataset.bucketName, dataset.getKey(GridExporter.Format.GRID), GridExporter.Format.GRID);
-
-            status.uploadedGrids += 1;
-            if (status.uploadedGrids == status.totalGrids) {
-                status.status = Status.DONE;
-                status.completed();
-            }
-            LOG.info("Completed {}/{} uploads for {}", status.uploadedGrids, status.totalGrids, status.name);
-        } catch (IOException e) {
-            status.status = Status.ERROR;
-            status.message = ExceptionUtils.asString(e);
-            status.completed();
-            throw AnalysisServerException.unknown(e);
-        }
-
-        return dataset;
     }
 
     /**
@@ -199,15 +202,12 @@ public class OpportunityDatasetController {
         final String accessGroup = req.attribute("accessGroup");
         final String email = req.attribute("email");
 
-        ServletFileUpload sfu = new ServletFileUpload(fileItemFactory);
-        String sourceName, regionId;
-        Map<String, List<FileItem>> query;
-        try {
-            query = sfu.parseParameterMap(req.raw());
-            sourceName = query.get("Name").get(0).getString("UTF-8");
-            regionId = query.get("regionId").get(0).getString("UTF-8");
-        } catch (Exception e) {
-            throw AnalysisServerException.fileUpload("Unable to create opportunity dataset. " + e.getMessage());
+        final MultipartUpload upload = MultipartUpload.receive(req);
+        final String sourceName = upload.getString("Name");
+        final String regionId = upload.getString("regionId");
+        if (sourceName == null || regionId == null) {
+            upload.delete();
+            throw AnalysisServerException.fileUpload("Unable to create opportunity dataset. Name and regionId are required.");
         }
 
         // Set a region wide status that we are processing opportunity data
@@ -219,19 +219,19 @@ public class OpportunityDatasetController {
             try {
                 Map<String, Grid> grids = null;
 
-                for (FileItem fi : query.get("files")) {
-                    String name = fi.getName();
+                for (MultipartUpload.UploadedFile file : upload.getFiles("files")) {
+                    String name = file.name;
                     if (name.endsWith(".csv")) {
                         LOG.info("Detected opportunity dataset stored as CSV");
-                        grids = createGridsFromCsv(query, status);
+                        grids = createGridsFromCsv(upload, status);
                         break;
                     } else if (name.endsWith(".grid")) {
                         LOG.info("Detected opportunity dataset stored in Conveyal binary format.");
-                        grids = createGridsFromBinaryGridFiles(query, status);
+                        grids = createGridsFromBinaryGridFiles(upload, status);
                         break;
                     } else if (name.endsWith(".shp")) {
                         LOG.info("Detected opportunity dataset stored as shapefile");
-                        grids = createGridsFromShapefile(query, fi.getName().substring(0, name.length() - 4), status);
+                        grids = createGridsFromShapefile(upload, status);
                         break;
                     }
                 }
@@ -248,6 +248,8 @@ public class OpportunityDatasetController {
                 status.status = Status.ERROR;
                 status.message = ExceptionUtils.asString(e);
                 status.completed();
+            } finally {
+                upload.delete();
             }
         });
 
@@ -285,6 +287,8 @@ public class OpportunityDatasetController {
 
         if (dataset == null) {
             throw AnalysisServerException.notFound("Opportunity dataset could not be found.");
+        } else if (dataset.contentHash != null) {
+            GridStore.release(dataset.contentHash, s3, dataset.bucketName);
         } else {
             deleteFormatIfExists(dataset.bucketName, dataset.getKey(GridExporter.Format.GRID));
             deleteFormatIfExists(dataset.bucketName, dataset.getKey(GridExporter.Format.PNG));
@@ -308,41 +312,37 @@ public class OpportunityDatasetController {
     /**
      * Create a grid from WGS 84 points in a CSV file
      */
-    private static Map<String, Grid> createGridsFromCsv(Map<String, List<FileItem>> query, OpportunityDatasetUploadStatus status) throws Exception {
-        String latField = query.get("latField").get(0).getString("UTF-8");
-        String lonField = query.get("lonField").get(0).getString("UTF-8");
+    private static Map<String, Grid> createGridsFromCsv(MultipartUpload upload, OpportunityDatasetUploadStatus status) throws Exception {
+        String latField = upload.getRequiredString("latField");
+        String lonField = upload.getRequiredString("lonField");
 
-        List<FileItem> file = query.get("files");
+        List<MultipartUpload.UploadedFile> files = upload.getFiles("files");
 
-        if (file.size() != 1) {
+        if (files.size() != 1) {
             throw AnalysisServerException.fileUpload("CSV upload only supports one file at a time.");
         }
 
-        // create a temp file because we have to loop over it twice
-        File tempFile = File.createTempFile("grid", ".csv");
-        file.get(0).write(tempFile);
-
-        Map<String, Grid> grids = Grid.fromCsv(tempFile, latField, lonField, SeamlessCensusGridExtractor.ZOOM, (complete, total) -> {
+        // The CSV is read in parallel chunks by random access, directly from the file it was uploaded to.
+        return CsvGridBuilder.fromCsv(files.get(0).file, latField, lonField, SeamlessCensusGridExtractor.ZOOM, (complete, total) -> {
             status.completedFeatures = complete;
             status.totalFeatures = total;
         });
-        // clean up
-        tempFile.delete();
-
-        return grids;
     }
 
     /**
      * Create a grid from an input stream containing a binary grid file.
      * For those in the know, we can upload manually created binary grid files.
      */
-    private static Map<String, Grid> createGridsFromBinaryGridFiles(Map<String, List<FileItem>> query, OpportunityDatasetUploadStatus status) throws Exception {
+    private static Map<String, Grid> createGridsFromBinaryGridFiles(MultipartUpload upload, OpportunityDatasetUploadStatus status) throws Exception {
         Map<String, Grid> grids = new HashMap<>();
-        List<FileItem> uploadedFiles = query.get("files");
+        List<MultipartUpload.UploadedFile> uploadedFiles = upload.getFiles("files");
         status.totalFeatures = uploadedFiles.size();
-        for (FileItem fileItem : uploadedFiles) {
-            Grid grid = Grid.read(fileItem.getInputStream());
-            String name = fileItem.getName();
+        for (MultipartUpload.UploadedFile file : uploadedFiles) {
+            Grid grid;
+            try (InputStream is = new BufferedInputStream(new FileInputStream(file.file))) {
+                grid = Grid.read(is);
+            }
+            String name = file.name;
             // Remove ".grid" from the name
             if (name.contains(".grid")) name = name.split(".grid")[0];
             grids.put(name, grid);
@@ -351,42 +351,14 @@ public class OpportunityDatasetController {
         return grids;
     }
 
-    private static Map<String, Grid> createGridsFromShapefile(Map<String, List<FileItem>> query, String baseName, OpportunityDatasetUploadStatus status) throws Exception {
-        // extract relevant files: .shp, .prj, .dbf, and .shx.
-        // We need the SHX even though we're looping over every feature as they might be sparse.
-        Map<String, FileItem> filesByName = query.get("files").stream()
-                .collect(Collectors.toMap(FileItem::getName, f -> f));
-
-        if (!filesByName.containsKey(baseName + ".shp") ||
-                !filesByName.containsKey(baseName + ".prj") ||
-                !filesByName.containsKey(baseName + ".dbf")) {
-            throw AnalysisServerException.fileUpload("Shapefile upload must contain .shp, .prj, and .dbf");
-        }
-
-        File tempDir = Files.createTempDir();
-
-        File shpFile = new File(tempDir, "grid.shp");
-        filesByName.get(baseName + ".shp").write(shpFile);
+    private static Map<String, Grid> createGridsFromShapefile(MultipartUpload upload, OpportunityDatasetUploadStatus status) throws Exception {
+        // The .shp, .prj, and .dbf were written side by side, and can be read from where they are. The .shx is optional.
+        File shpFile = upload.getShapefile("files");
 
-        File prjFile = new File(tempDir, "grid.prj");
-        filesByName.get(baseName + ".prj").write(prjFile);
-
-        File dbfFile = new File(tempDir, "grid.dbf");
-        filesByName.get(baseName + ".dbf").write(dbfFile);
-
-        // shx is optional, not needed for dense shapefiles
-        if (filesByName.containsKey(baseName + ".shx")) {
-            File shxFile = new File(tempDir, "grid.shx");
-            filesByName.get(baseName + ".shx").write(shxFile);
-        }
-
-        Map<String, Grid> grids = Grid.fromShapefile(shpFile, SeamlessCensusGridExtractor.ZOOM, (complete, total) -> {
+        return ShapefileRasterizer.rasterizeOpportunities(shpFile, SeamlessCensusGridExtractor.ZOOM, (complete, total) -> {
             status.completedFeatures = complete;
             status.totalFeatures = total;
         });
-
-        tempDir.delete();
-        return grids;
     }
 
     /**
@@ -432,9 +404,9 @@ public class OpportunityDatasetController {
     public static class OpportunityDatasetUploadStatus {
         public String id;
         public int totalFeatures = 0;
-        public int completedFeatures = 0;
+        public volatile int completedFeatures = 0;
         public int totalGrids = 0;
-        public int uploadedGrids = 0;
+        public volatile int uploadedGrids = 0;
         public String regionId;
         public Status status = Status.PROCESSING;
         public String name;
@@ -452,6 +424,17 @@ public class OpportunityDatasetController {
         public void completed () {
             this.completedAt = new Date();
         }
+
+        /**
+         * Record that one more grid has been uploaded. Uploads complete on several threads at once, so this must be
+         * synchronized. The upload is only marked done once the datasets referring to the grids have been saved.
+         *
+         * @return the number of grids uploaded so far
+         */
+        public synchronized int gridUploaded () {
+            uploadedGrids += 1;
+            return uploadedGrids;
+        }
     }
 
     private enum Status {
@@ -464,7 +447,7 @@ public class OpportunityDatasetController {
             post("/region/:regionId/download", OpportunityDatasetController::downloadLODES, JsonUtil.objectMapper::writeValueAsString);
             get("/region/:regionId/status", OpportunityDatasetController::getRegionUploadStatuses, JsonUtil.objectMapper::writeValueAsString);
             delete("/region/:regionId/status/:statusId", OpportunityDatasetController::clearStatus, JsonUtil.objectMapper::writeValueAsString);
-            get("/region/:regionId", OpportunityDatasetController::getRegionDatasets, JsonUtil.objectMapper::writeValueAsString);
+            get("/region/:regionId", OpportunityDatasetController::getRegionDatasets);
             delete("/source/:sourceId", OpportunityDatasetController::deleteSourceSet, JsonUtil.objectMapper::writeValueAsString);
             delete("/:_id", OpportunityDatasetController::deleteOpportunityDataset, JsonUtil.objectMapper::writeValueAsString);
             get("/:_id", OpportunityDatasetController::getOpportunityDataset, JsonUtil.objectMapper::writeValueAsString);
@@ -4,18 +4,22 @@ import com.conveyal.taui.models.AddTripPattern;
 import com.conveyal.taui.models.ConvertToFrequency;
 import com.conveyal.taui.models.Modification;
 import com.conveyal.taui.models.Project;
+import com.conveyal.taui.persistence.MongoMap;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.HttpUtil;
 import com.conveyal.taui.util.JsonUtil;
+import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
 import org.bson.types.ObjectId;
 import spark.Request;
 import spark.Response;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import static spark.Spark.delete;
 import static spark.Spark.get;
@@ -27,15 +31,16 @@ import static spark.Spark.put;
  * Controller for projects.
  */
 public class ProjectController {
-    public static Project findById(Request req, Response res) {
-        return Persistence.projects.findByIdFromRequestIfPermitted(req);
+    public static String findById(Request req, Response res) throws IOException {
+        Project project = Persistence.projects.findByIdFromRequestIfPermitted(req);
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(MongoMap.version(project)))) return "";
+        return JsonUtil.objectMapper.writeValueAsString(project);
     }
 
-    public static Collection<Project> getAllProjects (Request req, Response res) {
-        return Persistence.projects.findPermitted(
-                QueryBuilder.start("regionId").is(req.params("region")).get(),
-                req.attribute("accessGroup")
-        );
+    public static String getAllProjects (Request req, Response res) throws IOException {
+        DBObject query = QueryBuilder.start("regionId").is(req.params("region")).get();
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(Persistence.projects.pageVersion(query, req)))) return "";
+        return JsonUtil.writeJsonArray(Persistence.projects.findPermittedPage(query, null, req), res);
     }
 
     public static Project create(Request req, Response res) throws IOException {
@@ -46,11 +51,12 @@ public class ProjectController {
         return Persistence.projects.updateFromJSONRequest(req);
     }
 
-    public static Collection<Modification> modifications (Request req, Response res) {
-        return Persistence.modifications.findPermitted(
-                QueryBuilder.start("projectId").is(req.params("_id")).get(),
-                req.attribute("accessGroup")
-        );
+    public static String modifications (Request req, Response res) throws IOException {
+        DBObject query = QueryBuilder.start("projectId").is(req.params("_id")).get();
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(Persistence.modifications.pageVersion(query, req)))) {
+            return "";
+        }
+        return JsonUtil.writeJsonArray(Persistence.modifications.findPermittedPage(query, null, req), res);
     }
 
     public static Collection<Modification> importModifications (Request req, Response res) {
@@ -70,97 +76,95 @@ public class ProjectController {
 
         // This would be a lot easier if we just used the actual `_id`s and dealt with it elsewhere when searching. They
         // should be unique anyways. Hmmmmmmmmmmmm. Trade offs.
-        // Need to make two passes to create all the pairs and rematch for phasing
+        // Need to make two passes to create all the pairs and rematch for phasing. Both are made in memory, with new
+        // IDs assigned up front, so that all the clones can then be inserted at once.
         final Map<String, String> modificationIdPairs = new HashMap<>();
         final Map<String, String> timetableIdPairs = new HashMap<>();
 
-        return modifications
-                .stream()
-                .map(modification -> {
-                    String oldModificationId = modification._id;
-                    Modification clone = Persistence.modifications.create(modification);
-                    modificationIdPairs.put(oldModificationId, clone._id);
-
-                    // Change the projectId, most important part!
-                    clone.projectId = newId;
-
-                    // Set `name` to include "(import)"
-                    clone.name = clone.name + " (import)";
-
-                    // Set `updatedBy` by manually, `createdBy` stays with the original author
-                    clone.updatedBy = req.attribute("email");
-
-                    // Matched up the phased entries and timetables
-                    if (modification.getType().equals(AddTripPattern.type)) {
-                        if (bundlesAreNotEqual) {
-                            // Remove references to real stops in the old bundle
-                            ((AddTripPattern) clone).segments.forEach(segment -> {
-                                segment.fromStopId = null;
-                                segment.toStopId = null;
-                            });
-
-                            // Remove all phasing
-                            ((AddTripPattern) clone).timetables.forEach(tt -> {
-                                tt.phaseFromTimetable = null;
-                                tt.phaseAtStop = null;
-                                tt.phaseFromStop = null;
-                            });
-                        }
-
-                        ((AddTripPattern) clone).timetables.forEach(tt -> {
-                            String oldTTId = tt._id;
-                            tt._id = new ObjectId().toString();
-                            timetableIdPairs.put(oldTTId, tt._id);
-                        });
-                    } else if (modification.getType().equals(ConvertToFrequency.type)) {
-                        ((ConvertToFrequency) clone).entries.forEach(tt -> {
-                            String oldTTId = tt._id;
-                            tt._id = new ObjectId().toString();
-                            timetableIdPairs.put(oldTTId, tt._id);
-                        });
-                    }
+        final List<Modification> clones = new ArrayList<>();
+        for (Modification clone : modifications) {
+            String oldModificationId = clone._id;
+            clone._id = new ObjectId().toString();
+            modificationIdPairs.put(oldModificationId, clone._id);
+
+            // Change the projectId, most important part!
+            clone.projectId = newId;
+
+            // Set `name` to include "(import)"
+            clone.name = clone.name + " (import)";
+
+            // Matched up the phased entries and timetables
+            if (clone.getType().equals(AddTripPattern.type)) {
+                if (bundlesAreNotEqual) {
+                    // Remove references to real stops in the old bundle
+                    ((AddTripPattern) clone).segments.forEach(segment -> {
+                        segment.fromStopId = null;
+                        segment.toStopId = null;
+                    });
+
+                    // Remove all phasing
+                    ((AddTripPattern) clone).timetables.forEach(tt -> {
+                        tt.phaseFromTimetable = null;
+                        tt.phaseAtStop = null;
+                        tt.phaseFromStop = null;
+                    });
+                }
+
+                ((AddTripPattern) clone).timetables.forEach(tt -> {
+                    String oldTTId = tt._id;
+                    tt._id = new ObjectId().toString();
+                    timetableIdPairs.put(oldTTId, tt._id);
+                });
+            } else if (clone.getType().equals(ConvertToFrequency.type)) {
+                ((ConvertToFrequency) clone).entries.forEach(tt -> {
+                    String oldTTId = tt._id;
+                    tt._id = new ObjectId().toString();
+                    timetableIdPairs.put(oldTTId, tt._id);
+                });
+            }
+
+            clones.add(clone);
+        }
 
-                    return clone;
-                })
-                .collect(Collectors.toList())
-                .stream()
-                .map(modification -> {
-                    // A second pass is needed to map the phase pairs
-                    if (modification.getType().equals(AddTripPattern.type)) {
-                        ((AddTripPattern) modification).timetables.forEach(tt -> {
-                            String pft = tt.phaseFromTimetable;
-                            if (pft != null && pft.length() > 0) {
-                                String[] pfts = pft.split(":");
-                                tt.phaseFromTimetable = modificationIdPairs.get(pfts[0]) + ":" + timetableIdPairs.get(pfts[1]);
-                            }
-                        });
-                    } else if (modification.getType().equals(ConvertToFrequency.type)) {
-                        ((ConvertToFrequency) modification).entries.forEach(tt -> {
-                            String pft = tt.phaseFromTimetable;
-                            if (pft != null && pft.length() > 0) {
-                                String[] pfts = pft.split(":");
-                                tt.phaseFromTimetable = modificationIdPairs.get(pfts[0]) + ":" + timetableIdPairs.get(pfts[1]);
-                            }
-                        });
+        // A second pass is needed to map the phase pairs
+        for (Modification clone : clones) {
+            if (clone.getType().equals(AddTripPattern.type)) {
+                ((AddTripPattern) clone).timetables.forEach(tt -> {
+                    String pft = tt.phaseFromTimetable;
+                    if (pft != null && pft.length() > 0) {
+                        String[] pfts = pft.split(":");
+                        tt.phaseFromTimetable = modificationIdPairs.get(pfts[0]) + ":" + timetableIdPairs.get(pfts[1]);
                     }
+                });
+            } else if (clone.getType().equals(ConvertToFrequency.type)) {
+                ((ConvertToFrequency) clone).entries.forEach(tt -> {
+                    String pft = tt.phaseFromTimetable;
+                    if (pft != null && pft.length() > 0) {
+                        String[] pfts = pft.split(":");
+                        tt.phaseFromTimetable = modificationIdPairs.get(pfts[0]) + ":" + timetableIdPairs.get(pfts[1]);
+                    }
+                });
+            }
+        }
 
-                    return Persistence.modifications.put(modification);
-                })
-                .collect(Collectors.toList());
+        // Set `updatedBy` to the importer, `createdBy` stays with the original author
+        return Persistence.modifications.createAll(clones, req.attribute("email"));
     }
 
     public static Project deleteProject (Request req, Response res) {
         return Persistence.projects.removeIfPermitted(req.params("_id"), req.attribute("accessGroup"));
     }
 
-    public static Collection<Project> getProjects (Request req, Response res) {
-        return Persistence.projects.findPermittedForQuery(req);
+    public static String getProjects (Request req, Response res) throws IOException {
+        DBObject query = MongoMap.queryFromParams(req);
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(Persistence.projects.pageVersion(query, req)))) return "";
+        return JsonUtil.writeJsonArray(Persistence.projects.findPermittedPage(query, null, req), res);
     }
 
     public static void register () {
-        get("/api/project", ProjectController::getProjects, JsonUtil.objectMapper::writeValueAsString);
-        get("/api/project/:_id", ProjectController::findById, JsonUtil.objectMapper::writeValueAsString);
-        get("/api/project/:_id/modifications", ProjectController::modifications, JsonUtil.objectMapper::writeValueAsString);
+        get("/api/project", ProjectController::getProjects);
+        get("/api/project/:_id", ProjectController::findById);
+        get("/api/project/:_id/modifications", ProjectController::modifications);
         post("/api/project/:_id/import/:_importId", ProjectController::importModifications, JsonUtil.objectMapper::writeValueAsString);
         post("/api/project", ProjectController::create, JsonUtil.objectMapper::writeValueAsString);
         options("/api/project", (q, s) -> "");
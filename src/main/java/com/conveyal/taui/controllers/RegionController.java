@@ -4,14 +4,13 @@ import com.conveyal.osmlib.OSM;
 import com.conveyal.r5.util.ExceptionUtils;
 import com.conveyal.taui.AnalysisServerException;
 import com.conveyal.taui.models.Region;
+import com.conveyal.taui.persistence.MongoMap;
 import com.conveyal.taui.persistence.OSMPersistence;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.HttpUtil;
 import com.conveyal.taui.util.JsonUtil;
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
-import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import com.conveyal.taui.util.MultipartUpload;
+import com.mongodb.BasicDBObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
@@ -19,10 +18,6 @@ import spark.Response;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
 
 import static spark.Spark.delete;
 import static spark.Spark.get;
@@ -34,41 +29,32 @@ import static spark.Spark.put;
  */
 public class RegionController {
     private static final Logger LOG = LoggerFactory.getLogger(RegionController.class);
-    private static final FileItemFactory fileItemFactory = new DiskFileItemFactory();
 
-    public static Region getRegion (Request req, Response res) {
-        return Persistence.regions.findByIdFromRequestIfPermitted(req);
+    public static String getRegion (Request req, Response res) throws IOException {
+        Region region = Persistence.regions.findByIdFromRequestIfPermitted(req);
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(MongoMap.version(region)))) return "";
+        return JsonUtil.objectMapper.writeValueAsString(region);
     }
 
-    public static Collection<Region> getAllRegions (Request req, Response res) {
-        return Persistence.regions.findAllForRequest(req);
-    }
-
-    public static Map<String, List<FileItem>> getFilesFromRequest (Request req) {
-        try {
-            ServletFileUpload sfu = new ServletFileUpload(fileItemFactory);
-            return sfu.parseParameterMap(req.raw());
-        } catch (FileUploadException e) {
-            throw AnalysisServerException.fileUpload("Error uploading files. " + ExceptionUtils.asString(e));
-        }
+    public static String getAllRegions (Request req, Response res) throws IOException {
+        String version = Persistence.regions.pageVersion(new BasicDBObject(), req);
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(version))) return "";
+        return JsonUtil.writeJsonArray(Persistence.regions.findAllForRequest(req), res);
     }
 
     /**
      * Read OSM files supplied during region creation
      * @param region
-     * @param files MIME multipart upload (including osm.pbf)
+     * @param upload MIME multipart upload (including osm.pbf)
      * @throws Exception
      */
-    public static void uploadOSM(Region region, Map<String, List<FileItem>> files) throws Exception {
+    public static void uploadOSM(Region region, File customOsmData) throws Exception {
         try {
             // Set the status to Started
             region.statusCode = Region.StatusCode.STARTED;
             Persistence.regions.put(region);
 
-            File customOsmData = File.createTempFile("uploaded-osm", ".pbf");
-            files.get("customOpenStreetMapData").get(0).write(customOsmData);
             OSMPersistence.cache.put(region._id, customOsmData);
-            customOsmData.delete();
 
             region.customOsm = true;
             region.statusCode = Region.StatusCode.DONE;
@@ -91,12 +77,11 @@ public class RegionController {
      * @throws Exception
      */
     public static Region create(Request req, Response res) throws Exception {
+        final MultipartUpload upload = MultipartUpload.receive(req);
         try {
-            final Map<String, List<FileItem>> files = getFilesFromRequest(req);
-
-            InputStream is = files.get("region").get(0).getInputStream();
-            final Region region = JsonUtil.objectMapper.readValue(is, Region.class);
-            is.close();
+            final Region region = JsonUtil.objectMapper.readValue(upload.getRequiredString("region"), Region.class);
+            // Check that the OSM data was uploaded before creating the region, so a bad request leaves nothing behind.
+            final File customOsmData = upload.getRequiredFile("customOpenStreetMapData");
 
             // Set the `accessGroup` and `createdBy`
             region.accessGroup = req.attribute("accessGroup");
@@ -106,11 +91,13 @@ public class RegionController {
             Persistence.regions.create(region);
 
             // Upload custom OSM data
-            uploadOSM(region, files);
+            uploadOSM(region, customOsmData);
 
             return region;
         } catch (IOException e) {
             throw AnalysisServerException.badRequest("Error parsing region. " + ExceptionUtils.asString(e));
+        } finally {
+            upload.delete();
         }
     }
 
@@ -123,10 +110,10 @@ public class RegionController {
     }
 
     public static void register () {
-        get("/api/region", RegionController::getAllRegions, JsonUtil.objectMapper::writeValueAsString);
-        get("/api/region/:_id", RegionController::getRegion, JsonUtil.objectMapper::writeValueAsString);
-        get("/api/region/:region/projects", ProjectController::getAllProjects, JsonUtil.objectMapper::writeValueAsString);
-        get("/api/region/:region/bookmark", BookmarkController::getAllBookmarks, JsonUtil.objectMapper::writeValueAsString);
+        get("/api/region", RegionController::getAllRegions);
+        get("/api/region/:_id", RegionController::getRegion);
+        get("/api/region/:region/projects", ProjectController::getAllProjects);
+        get("/api/region/:region/bookmark", BookmarkController::getAllBookmarks);
         post("/api/region/:region/bookmark", BookmarkController::createBookmark, JsonUtil.objectMapper::writeValueAsString);
         post("/api/region", RegionController::create, JsonUtil.objectMapper::writeValueAsString);
         put("/api/region/:_id", RegionController::update, JsonUtil.objectMapper::writeValueAsString);
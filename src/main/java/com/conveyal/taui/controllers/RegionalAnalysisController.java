@@ -9,6 +9,7 @@ import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.AnalysisServerException;
 import com.conveyal.taui.SelectingGridReducer;
+import com.conveyal.taui.analysis.ScenarioPublisher;
 import com.conveyal.taui.analysis.broker.Broker;
 import com.conveyal.taui.analysis.broker.WorkerTags;
 import com.conveyal.taui.grids.GridExporter;
@@ -17,7 +18,9 @@ import com.conveyal.taui.models.OpportunityDataset;
 import com.conveyal.taui.models.Project;
 import com.conveyal.taui.models.RegionalAnalysis;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.HttpUtil;
 import com.conveyal.taui.util.JsonUtil;
+import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
 import org.mongojack.DBProjection;
 import org.slf4j.Logger;
@@ -29,7 +32,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Collection;
 
 import static spark.Spark.delete;
 import static spark.Spark.get;
@@ -53,15 +55,16 @@ public class RegionalAnalysisController {
     // FIXME hackish - all other components can use the broker via this public field.
     public static final Broker broker = new Broker();
 
-    public static Collection<RegionalAnalysis> getRegionalAnalysis (Request req, Response res) {
-        return Persistence.regionalAnalyses.findPermitted(
-                QueryBuilder.start().and(
-                        QueryBuilder.start("regionId").is(req.params("regionId")).get(),
-                        QueryBuilder.start("deleted").is(false).get()
-                ).get(),
-                DBProjection.exclude("request.scenario.modifications"),
-                req.attribute("accessGroup")
-        );
+    public static String getRegionalAnalysis (Request req, Response res) throws IOException {
+        DBObject query = QueryBuilder.start().and(
+                QueryBuilder.start("regionId").is(req.params("regionId")).get(),
+                QueryBuilder.start("deleted").is(false).get()
+        ).get();
+        // Each analysis includes the status of its job, which changes as results arrive.
+        String version = Persistence.regionalAnalyses.pageVersion(query, req) + broker.getJobStatusVersion();
+        if (HttpUtil.notModified(req, res, HttpUtil.weakEtag(version))) return "";
+        return JsonUtil.writeJsonArray(Persistence.regionalAnalyses.findPermittedPage(query,
+                DBProjection.exclude("request.scenario.modifications"), req), res);
     }
 
     public static RegionalAnalysis deleteRegionalAnalysis (Request req, Response res) {
@@ -272,25 +275,14 @@ public class RegionalAnalysisController {
         // origin points, typically on a grid. Before passing that object on to the Broker (which distributes tasks to
         // workers and tracks progress), we remove the details of the scenario, substituting the scenario's unique ID
         // to save time and bandwidth. This avoids repeatedly sending the scenario details to the worker in every task,
-        // as they are often quite voluminous. The workers will fetch the scenario once from S3 and cache it based on
-        // its ID only. We protectively clone this task because we're going to null out its scenario field, and don't
-        // want to affect the original object which contains all the scenario details.
+        // as they are often quite voluminous. The workers will fetch the scenario once from S3 or this server and cache
+        // it based on its ID only. We protectively clone this task because we're going to null out its scenario field,
+        // and don't want to affect the original object which contains all the scenario details.
         RegionalTask templateTask = regionalAnalysis.request.clone();
         Scenario scenario = templateTask.scenario;
         templateTask.scenarioId = scenario.id;
         templateTask.scenario = null;
-        String fileName = String.format("%s_%s.json", regionalAnalysis.bundleId, scenario.id);
-        File cachedScenario = new File(AnalysisServerConfig.localCacheDirectory, fileName);
-        try {
-            JsonUtil.objectMapper.writeValue(cachedScenario, scenario);
-        } catch (IOException e) {
-            LOG.error("Error saving scenario to disk", e);
-        }
-        if (!AnalysisServerConfig.offline) {
-            // Upload the scenario to S3 where workers can fetch it by ID.
-            // TODO have the backend supply the scenarios over an HTTP API to the workers (which would then cache them), so we don't need to use S3?
-            s3.putObject(AnalysisServerConfig.bundleBucket, fileName, cachedScenario);
-        }
+        ScenarioPublisher.publish(regionalAnalysis.bundleId, scenario);
 
         // Fill in all the fields in the template task that will remain the same across all tasks in a job.
         // Re-setting all these fields may not be necessary (they might already be set previously),
@@ -321,7 +313,7 @@ public class RegionalAnalysisController {
     }
 
     public static void register () {
-        get("/api/region/:regionId/regional", RegionalAnalysisController::getRegionalAnalysis, JsonUtil.objectMapper::writeValueAsString);
+        get("/api/region/:regionId/regional", RegionalAnalysisController::getRegionalAnalysis);
         // For grids, no transformer is supplied: render raw bytes or input stream rather than transforming to JSON.
         get("/api/regional/:_id/grid/:format", RegionalAnalysisController::getRegionalResults);
         get("/api/regional/:_id/:comparisonId/:format", RegionalAnalysisController::getProbabilitySurface, JsonUtil.objectMapper::writeValueAsString);
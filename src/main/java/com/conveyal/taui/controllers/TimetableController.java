@@ -1,21 +1,31 @@
 package com.conveyal.taui.controllers;
 
 import com.conveyal.taui.models.AddTripPattern;
+import com.conveyal.taui.models.Model;
 import com.conveyal.taui.models.Modification;
 import com.conveyal.taui.models.Project;
 import com.conveyal.taui.models.Region;
 import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.HttpUtil;
 import com.conveyal.taui.util.JsonUtil;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import static spark.Spark.get;
 
@@ -25,51 +35,106 @@ import static spark.Spark.get;
 public class TimetableController {
     private static final Logger LOG = LoggerFactory.getLogger(TimetableController.class);
 
-    public static String getTimetables (Request req, Response res) {
-        JSONArray json = new JSONArray();
-        Collection<Region> regions = Persistence.regions.findAllForRequest(req);
+    /**
+     * Return the timetables of all the add trip pattern modifications in the user's access group, nested within
+     * their projects and regions. This takes three queries however many regions and projects there are: one each for
+     * the regions, their projects and the modifications of those projects. The result is written straight into the
+     * response, and has an ETag so that a client that already has the current timetables need not download them again.
+     */
+    public static String getTimetables (Request req, Response res) throws IOException {
+        List<Region> regions = Persistence.regions.find(
+                QueryBuilder.start("accessGroup").is(req.attribute("accessGroup")).get(),
+                DBProjection.include("name", "updatedAt")
+        ).toArray();
 
+        List<Project> projects = Persistence.projects.find(
+                QueryBuilder.start("regionId").in(ids(regions)).get(),
+                DBProjection.include("name", "regionId", "updatedAt")
+        ).toArray();
+
+        DBObject modificationQuery = QueryBuilder.start("projectId").in(ids(projects))
+                .and("type").is(AddTripPattern.type)
+                .and("timetables.0").exists(true)
+                .get();
+
+        // Check whether the client's copy is still current, reading only the update times of the modifications.
+        List<Modification> versions = Persistence.modifications.find(modificationQuery,
+                DBProjection.include("type", "updatedAt")).toArray();
+        String etag = HttpUtil.etag(String.join(",", version(regions), version(projects), version(versions)));
+        if (HttpUtil.notModified(req, res, etag)) return "";
+
+        Map<String, List<Project>> projectsByRegion = new LinkedHashMap<>();
+        for (Project project : projects) {
+            projectsByRegion.computeIfAbsent(project.regionId, k -> new ArrayList<>()).add(project);
+        }
+
+        Map<String, List<AddTripPattern>> modificationsByProject = new LinkedHashMap<>();
+        DBCursor<Modification> modifications = Persistence.modifications.find(modificationQuery,
+                DBProjection.include("type", "name", "projectId", "segments", "timetables"));
+        try {
+            for (Modification modification : modifications) {
+                modificationsByProject.computeIfAbsent(modification.projectId, k -> new ArrayList<>())
+                        .add((AddTripPattern) modification);
+            }
+        } finally {
+            modifications.close();
+        }
+
+        JsonGenerator generator = JsonUtil.objectMapper.getFactory().createGenerator(res.raw().getOutputStream());
+        generator.writeStartArray();
         for (Region region : regions) {
-            JSONObject r = new JSONObject();
-            r.put("_id", region._id);
-            r.put("name", region.name);
-            JSONArray regionProjects = new JSONArray();
-            List<Project> projects = Persistence.projects.find(QueryBuilder.start("regionId").is(region._id).get()).toArray();
-            for (Project project : projects) {
-                JSONObject p = new JSONObject();
-                p.put("_id", project._id);
-                p.put("name", project.name);
-                JSONArray projectModifications = new JSONArray();
-                List<Modification> modifications = Persistence.modifications.find(
-                        QueryBuilder.start("projectId").is(project._id).and("type").is("add-trip-pattern").get()
-                ).toArray();
-                for (Modification modification : modifications) {
-                    AddTripPattern tripPattern = (AddTripPattern) modification;
-                    JSONObject m = new JSONObject();
-                    m.put("_id", modification._id);
-                    m.put("name", modification.name);
-                    m.put("segments", JsonUtil.objectMapper.valueToTree(tripPattern.segments));
-                    JSONArray modificationTimetables = new JSONArray();
-                    for (AddTripPattern.Timetable timetable : tripPattern.timetables) {
-                        modificationTimetables.add(JsonUtil.objectMapper.valueToTree(timetable));
-                    }
-                    m.put("timetables", modificationTimetables);
-                    if (modificationTimetables.size() > 0) {
-                        projectModifications.add(m);
-                    }
-                }
-                p.put("modifications", projectModifications);
-                if (projectModifications.size() > 0) {
-                    regionProjects.add(p);
+            List<Project> regionProjects = projectsByRegion.getOrDefault(region._id, new ArrayList<>()).stream()
+                    .filter(project -> modificationsByProject.containsKey(project._id))
+                    .collect(Collectors.toList());
+            if (regionProjects.isEmpty()) continue;
+
+            generator.writeStartObject();
+            generator.writeStringField("_id", region._id);
+            generator.writeStringField("name", region.name);
+            generator.writeArrayFieldStart("projects");
+            for (Project project : regionProjects) {
+                generator.writeStartObject();
+                generator.writeStringField("_id", project._id);
+                generator.writeStringField("name", project.name);
+                generator.writeArrayFieldStart("modifications");
+                for (AddTripPattern tripPattern : modificationsByProject.get(project._id)) {
+                    generator.writeStartObject();
+                    generator.writeStringField("_id", tripPattern._id);
+                    generator.writeStringField("name", tripPattern.name);
+                    generator.writeFieldName("segments");
+                    generator.writeObject(tripPattern.segments);
+                    generator.writeFieldName("timetables");
+                    generator.writeObject(tripPattern.timetables);
+                    generator.writeEndObject();
                 }
+                generator.writeEndArray();
+                generator.writeEndObject();
             }
-            r.put("projects", regionProjects);
-            if (regionProjects.size() > 0) {
-                json.add(r);
-            }
+            generator.writeEndArray();
+            generator.writeEndObject();
         }
+        generator.writeEndArray();
+        generator.flush();
+
+        return "";
+    }
+
+    private static List<String> ids (Collection<? extends Model> values) {
+        return values.stream().map(value -> value._id).collect(Collectors.toList());
+    }
 
-        return json.toString();
+    /**
+     * Describe the version of a set of values by how many there are and when the latest was updated. Deleting a value
+     * changes the count, and adding or editing one changes the latest update time.
+     */
+    private static String version (Collection<? extends Model> values) {
+        long latest = values.stream()
+                .map(value -> value.updatedAt)
+                .filter(updatedAt -> updatedAt != null)
+                .mapToLong(Date::getTime)
+                .max()
+                .orElse(0);
+        return values.size() + ":" + latest;
     }
 
     public static void register () {
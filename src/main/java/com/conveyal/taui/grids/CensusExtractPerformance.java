@@ -0,0 +1,88 @@
+package com.conveyal.taui.grids;
+
+import com.conveyal.data.census.FileSeamlessSource;
+import com.conveyal.data.census.SeamlessSource;
+import com.conveyal.data.geobuf.GeobufFeature;
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.taui.models.Bounds;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compare the parallel census extraction in SeamlessCensusGridExtractor with the original sequential one, using a
+ * local directory of seamless-census tiles (laid out as in the S3 bucket, e.g. as written by the seamless-census
+ * loader). This is not an automated unit test, it's a manually run performance indicator.
+ *
+ * Arguments: tile directory, then optionally north, east, south, west bounds in degrees.
+ */
+public class CensusExtractPerformance {
+
+    public static void main (String[] args) throws Exception {
+        if (args.length != 1 && args.length != 5) {
+            System.out.println("Usage: CensusExtractPerformance tileDirectory [north east south west]");
+            return;
+        }
+        SeamlessSource source = new FileSeamlessSource(args[0]);
+        Bounds bounds = new Bounds();
+        if (args.length == 5) {
+            bounds.north = Double.parseDouble(args[1]);
+            bounds.east = Double.parseDouble(args[2]);
+            bounds.south = Double.parseDouble(args[3]);
+            bounds.west = Double.parseDouble(args[4]);
+        } else {
+            // Washington, DC and its inner suburbs
+            bounds.north = 39.0;
+            bounds.east = -76.9;
+            bounds.south = 38.8;
+            bounds.west = -77.2;
+        }
+
+        for (int i = 0; i < 3; i++) {
+            long start = System.currentTimeMillis();
+            Map<String, Grid> sequential = extractSequentially(source, bounds);
+            long sequentialTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            Map<String, Grid> parallel = SeamlessCensusGridExtractor.extractCensusData(source, bounds);
+            long parallelTime = System.currentTimeMillis() - start;
+
+            System.out.println(String.format("sequential %d ms, parallel %d ms, %d grids, max difference %g",
+                    sequentialTime, parallelTime, parallel.size(), maxDifference(sequential, parallel)));
+        }
+        System.exit(0);
+    }
+
+    /** The extraction as it was originally written, for comparison. */
+    private static Map<String, Grid> extractSequentially (SeamlessSource source, Bounds bounds) throws Exception {
+        Map<Long, GeobufFeature> features = source.extract(bounds.north, bounds.east, bounds.south, bounds.west, false);
+        Map<String, Grid> grids = new HashMap<>();
+        features.values().forEach(feature -> {
+            List<Grid.PixelWeight> weights = null;
+            for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
+                if (!(e.getValue() instanceof Number)) continue;
+                Grid grid = grids.computeIfAbsent(e.getKey(), k -> new Grid(SeamlessCensusGridExtractor.ZOOM,
+                        bounds.north, bounds.east, bounds.south, bounds.west));
+                if (weights == null) weights = grid.getPixelWeights(feature.geometry);
+                grid.incrementFromPixelWeights(weights, ((Number) e.getValue()).doubleValue());
+            }
+        });
+        return grids;
+    }
+
+    private static double maxDifference (Map<String, Grid> a, Map<String, Grid> b) {
+        if (!a.keySet().equals(b.keySet())) return Double.POSITIVE_INFINITY;
+        double max = 0;
+        for (String key : a.keySet()) {
+            double[][] ga = a.get(key).grid;
+            double[][] gb = b.get(key).grid;
+            for (int x = 0; x < ga.length; x++) {
+                for (int y = 0; y < ga[x].length; y++) {
+                    max = Math.max(max, Math.abs(ga[x][y] - gb[x][y]));
+                }
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,463 @@
+package com.conveyal.taui.grids;
+
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.taui.AnalysisServerException;
+import com.conveyal.taui.ExecutorServices;
+import com.csvreader.CsvReader;
+import com.google.common.io.ByteStreams;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static com.conveyal.r5.analyst.Grid.latToPixel;
+import static com.conveyal.r5.analyst.Grid.lonToPixel;
+
+/**
+ * Builds opportunity grids from a CSV file of WGS84 points in a single pass over the file.
+ *
+ * Grid.fromCsv in R5 reads the whole file twice on one thread: once to find the bounds and the numeric columns, and
+ * once to rasterize. Here the candidate numeric columns are found on a sample from the start of the file, then the rest
+ * of the file is split into byte ranges that begin and end on line boundaries, which are parsed in parallel. Because
+ * the bounds are not known until every row has been read, each chunk accumulates its points into a sparse map keyed on
+ * absolute Web Mercator pixel, and these are merged into one dense grid per column at the end. Every value is still
+ * checked as it is parsed: as in Grid.fromCsv, a column with a non-numeric value anywhere in the file produces no grid,
+ * and a row whose coordinates cannot be parsed fails the upload with its row number.
+ *
+ * Splitting on newlines is only valid if no split falls inside a quoted field containing a line break. If the sample
+ * contains such a field, the whole file is parsed as a single chunk. Otherwise each chunk counts the quotes in its
+ * bytes, and a split preceded by an odd number of quotes must fall inside a quoted field. If any split does, or if any
+ * chunk of a split file fails to parse (which a misaligned split would also cause), the chunks are discarded and the
+ * whole file is parsed again as a single chunk, which reports any error in the file itself.
+ */
+public abstract class CsvGridBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(CsvGridBuilder.class);
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /** The number of bytes at the start of the file examined to find the header and the numeric columns. */
+    private static final int SAMPLE_BYTES = 1024 * 1024;
+
+    /** Chunks smaller than this are not worth the overhead of a separate parallel task. */
+    private static final long MIN_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    /** Aim for this many chunks per compute thread, so that threads finishing early can pick up remaining work. */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** Each chunk reports the rows it has parsed to the status listener this often. */
+    private static final int PROGRESS_INTERVAL_ROWS = 10_000;
+
+    /**
+     * Create one grid for each numeric column of the given CSV file, summing the values of all points falling in
+     * each cell. The status listener receives the number of rows parsed so far and an estimate of the total number
+     * of rows, which is extrapolated from the sample and is exact once parsing is complete.
+     */
+    public static Map<String, Grid> fromCsv (File csvFile, String latField, String lonField, int zoom,
+                                             BiConsumer<Integer, Integer> statusListener) throws Exception {
+        return fromCsv(csvFile, latField, lonField, zoom, statusListener, true);
+    }
+
+    /** @param allowSplitting false to parse the file as a single chunk, to compare with a split parse in tests */
+    static Map<String, Grid> fromCsv (File csvFile, String latField, String lonField, int zoom,
+                                      BiConsumer<Integer, Integer> statusListener, boolean allowSplitting)
+            throws Exception {
+        long startTime = System.currentTimeMillis();
+        long fileLength = csvFile.length();
+
+        byte[] sample = readBytes(csvFile, (int) Math.min(fileLength, SAMPLE_BYTES));
+        int headerEnd = indexAfterNewline(sample, 0);
+        if (headerEnd < 0) {
+            throw AnalysisServerException.fileUpload("CSV file does not contain any rows below the header.");
+        }
+
+        CsvReader headerReader = new CsvReader(new ByteArrayInputStream(sample, 0, headerEnd), CHARSET);
+        headerReader.readHeaders();
+        String[] headers = headerReader.getHeaders();
+        headerReader.close();
+
+        List<String> headerList = Arrays.asList(headers);
+        if (!headerList.contains(latField) || !headerList.contains(lonField)) {
+            throw AnalysisServerException.fileUpload(String.format("CSV file must contain the columns %s and %s.",
+                    latField, lonField));
+        }
+
+        // Only examine complete lines of the sample, unless the sample is the whole file.
+        int sampleEnd = sample.length == fileLength ? sample.length : lastIndexAfterNewline(sample);
+        int sampleRows = 0;
+        Set<String> numericColumns = new LinkedHashSet<>(headerList);
+        numericColumns.remove(latField);
+        numericColumns.remove(lonField);
+        CsvReader sampleReader = new CsvReader(new ByteArrayInputStream(sample, headerEnd, sampleEnd - headerEnd), CHARSET);
+        sampleReader.setHeaders(headers);
+        while (sampleReader.readRecord()) {
+            sampleRows++;
+            numericColumns.removeIf(column -> !isNumericOrEmpty(sampleReader, column));
+        }
+        sampleReader.close();
+
+        String[] columns = numericColumns.toArray(new String[numericColumns.size()]);
+        int estimatedRows = sampleRows == 0 ? 0 :
+                (int) ((fileLength - headerEnd) * sampleRows / Math.max(1, sampleEnd - headerEnd));
+        boolean splittable = allowSplitting && !containsQuotedNewline(sample, headerEnd, sampleEnd);
+        if (allowSplitting && !splittable) {
+            LOG.warn("CSV file contains line breaks inside quoted fields, it will be parsed on a single thread.");
+        }
+
+        AtomicInteger rowsParsed = new AtomicInteger();
+        List<ChunkAccumulator> chunks = parseChunks(csvFile, headerEnd, fileLength, splittable, headers, latField,
+                lonField, columns, zoom, rowsParsed, estimatedRows, statusListener);
+        if (chunks.size() > 1 && !splitCleanly(chunks)) {
+            LOG.warn("CSV file was split inside a quoted field or could not be parsed in chunks, parsing it again " +
+                    "on a single thread.");
+            rowsParsed.set(0);
+            chunks = parseChunks(csvFile, headerEnd, fileLength, false, headers, latField, lonField, columns, zoom,
+                    rowsParsed, estimatedRows, statusListener);
+        }
+
+        Map<String, Grid> grids = mergeChunks(chunks, columns, zoom);
+        statusListener.accept(rowsParsed.get(), rowsParsed.get());
+
+        LOG.info("Parsing {} rows of CSV took {} seconds", rowsParsed.get(),
+                (System.currentTimeMillis() - startTime) / 1000);
+        return grids;
+    }
+
+    /**
+     * Split the rows after the header into chunks, or a single chunk if the file is not splittable, and parse them in
+     * parallel on the compute executor.
+     */
+    private static List<ChunkAccumulator> parseChunks (File csvFile, long headerEnd, long fileLength,
+            boolean splittable, String[] headers, String latField, String lonField, String[] columns, int zoom,
+            AtomicInteger rowsParsed, int estimatedRows, BiConsumer<Integer, Integer> statusListener)
+            throws Exception {
+        List<long[]> ranges = splitAtLineBoundaries(csvFile, headerEnd, fileLength, splittable);
+        LOG.info("Parsing {} candidate numeric columns of CSV file with about {} rows in {} chunks.", columns.length,
+                estimatedRows, ranges.size());
+
+        List<Callable<ChunkAccumulator>> chunkTasks = new ArrayList<>();
+        for (long[] range : ranges) {
+            chunkTasks.add(() -> parseChunk(csvFile, range[0], range[1], ranges.size() > 1, headers,
+                    latField, lonField, columns, zoom, delta -> {
+                        int rows = rowsParsed.addAndGet(delta);
+                        statusListener.accept(rows, Math.max(rows, estimatedRows));
+                    }));
+        }
+
+        List<ChunkAccumulator> chunks = new ArrayList<>();
+        // The futures are in the order of the ranges, and so are the chunks.
+        for (Future<ChunkAccumulator> future : ExecutorServices.compute.invokeAll(chunkTasks)) {
+            try {
+                chunks.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Parse all the rows in the given byte range of the file, which must start at the beginning of a line and end
+     * just after a newline (or at the end of the file). If the file has been split, the quotes in the range are
+     * counted, and a row that cannot be read or whose coordinates cannot be parsed only marks the chunk as failed, as
+     * the split may have cut a quoted field in two.
+     */
+    private static ChunkAccumulator parseChunk (File csvFile, long start, long end, boolean split,
+            String[] headers, String latField, String lonField, String[] columns, int zoom, ProgressListener progress)
+            throws IOException {
+        ChunkAccumulator chunk = new ChunkAccumulator(columns.length);
+        int rowsSinceReport = 0;
+        try (FileInputStream fileInputStream = new FileInputStream(csvFile)) {
+            fileInputStream.getChannel().position(start);
+            QuoteCountingInputStream counter = new QuoteCountingInputStream(
+                    ByteStreams.limit(fileInputStream, end - start));
+            CsvReader reader = new CsvReader(new BufferedInputStream(counter), CHARSET);
+            reader.setHeaders(headers);
+            while (readRecord(reader, chunk, split)) {
+                double lat, lon;
+                try {
+                    lat = Double.parseDouble(reader.get(latField));
+                    lon = Double.parseDouble(reader.get(lonField));
+                } catch (NumberFormatException e) {
+                    if (split) {
+                        chunk.failed = true;
+                        break;
+                    }
+                    // A file that is not split is parsed as a single chunk starting just after the header.
+                    throw AnalysisServerException.fileUpload(String.format(
+                            "Could not parse coordinates \"%s\", \"%s\" on row %d.",
+                            reader.get(latField), reader.get(lonField), reader.getCurrentRecord() + 1));
+                }
+                double[] values = chunk.valuesAt(lonToPixel(lon, zoom), latToPixel(lat, zoom));
+                for (int c = 0; c < columns.length; c++) {
+                    if (chunk.nonNumeric[c]) continue;
+                    String value = reader.get(columns[c]);
+                    if (value == null || value.isEmpty()) continue;
+                    try {
+                        values[c] += Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        chunk.nonNumeric[c] = true;
+                    }
+                }
+                if (++rowsSinceReport == PROGRESS_INTERVAL_ROWS) {
+                    progress.rowsParsed(rowsSinceReport);
+                    rowsSinceReport = 0;
+                }
+            }
+            reader.close();
+            chunk.quotes = counter.quotes;
+        }
+        progress.rowsParsed(rowsSinceReport);
+        return chunk;
+    }
+
+    /**
+     * Read the next record. In a chunk of a split file, a record that cannot be read (such as an overlong field, as
+     * results from starting inside a quoted field) marks the chunk as failed and ends it.
+     */
+    private static boolean readRecord (CsvReader reader, ChunkAccumulator chunk, boolean split) throws IOException {
+        try {
+            return reader.readRecord();
+        } catch (IOException e) {
+            if (!split) throw e;
+            chunk.failed = true;
+            return false;
+        }
+    }
+
+    /**
+     * @return true if every chunk of a split file was parsed, and every split is preceded by an even number of quotes
+     *         so cannot have fallen inside a quoted field.
+     */
+    private static boolean splitCleanly (List<ChunkAccumulator> chunks) {
+        long quotes = 0;
+        for (ChunkAccumulator chunk : chunks) {
+            if (chunk.failed || quotes % 2 != 0) return false;
+            quotes += chunk.quotes;
+        }
+        return true;
+    }
+
+    /**
+     * Combine the sparse per-chunk accumulators into one dense grid per column, covering the bounds of all the points.
+     */
+    private static Map<String, Grid> mergeChunks (List<ChunkAccumulator> chunks, String[] columns, int zoom) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (ChunkAccumulator chunk : chunks) {
+            if (chunk.valuesByPixel.isEmpty()) continue;
+            minX = Math.min(minX, chunk.minX);
+            minY = Math.min(minY, chunk.minY);
+            maxX = Math.max(maxX, chunk.maxX);
+            maxY = Math.max(maxY, chunk.maxY);
+        }
+        if (minX > maxX) {
+            throw AnalysisServerException.fileUpload("CSV file does not contain any rows below the header.");
+        }
+
+        // Columns with a non-numeric value in any chunk are left out, as they would have been by Grid.fromCsv. Their
+        // sums are still accumulated up to that value, but are discarded here.
+        Map<String, Grid> grids = new HashMap<>();
+        Grid[] gridForColumn = new Grid[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            final int column = c;
+            if (chunks.stream().anyMatch(chunk -> chunk.nonNumeric[column])) {
+                LOG.info("Column {} contains non-numeric values, no grid will be created for it.", columns[c]);
+                continue;
+            }
+            gridForColumn[c] = new Grid(zoom, maxX - minX + 1, maxY - minY + 1, minY, minX);
+            grids.put(columns[c], gridForColumn[c]);
+        }
+
+        final int west = minX, north = minY;
+        for (ChunkAccumulator chunk : chunks) {
+            chunk.valuesByPixel.forEachEntry((pixel, values) -> {
+                int x = ChunkAccumulator.pixelX(pixel) - west;
+                int y = ChunkAccumulator.pixelY(pixel) - north;
+                for (int c = 0; c < values.length; c++) {
+                    if (gridForColumn[c] != null) gridForColumn[c].grid[x][y] += values[c];
+                }
+                return true;
+            });
+        }
+        return grids;
+    }
+
+    /**
+     * Split the byte range [start, end) of the file into ranges of roughly equal size, moving each boundary forward
+     * to just after the next newline. If the file cannot be split, a single range is returned.
+     */
+    private static List<long[]> splitAtLineBoundaries (File file, long start, long end, boolean splittable)
+            throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        long chunkBytes = Math.max(MIN_CHUNK_BYTES, (end - start) / (threads * CHUNKS_PER_THREAD));
+        if (!splittable) chunkBytes = end - start;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long chunkStart = start;
+            while (chunkStart < end) {
+                long chunkEnd = chunkStart + chunkBytes >= end ? end : nextLineStart(raf, chunkStart + chunkBytes);
+                ranges.add(new long[] { chunkStart, chunkEnd });
+                chunkStart = chunkEnd;
+            }
+        }
+        return ranges;
+    }
+
+    /** Return the position just after the first newline at or after the given position, or the end of the file. */
+    private static long nextLineStart (RandomAccessFile raf, long position) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        raf.seek(position);
+        while (true) {
+            int n = raf.read(buffer);
+            if (n < 0) return raf.length();
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == '\n') return position + i + 1;
+            }
+            position += n;
+        }
+    }
+
+    private static byte[] readBytes (File file, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    /** @return the index just after the first newline at or after from, or -1 if there is none. */
+    private static int indexAfterNewline (byte[] bytes, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == '\n') return i + 1;
+        }
+        return -1;
+    }
+
+    /** @return the index just after the last newline in the array, or zero if there is none. */
+    private static int lastIndexAfterNewline (byte[] bytes) {
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') return i + 1;
+        }
+        return 0;
+    }
+
+    /** Track quoting through the given bytes to see if any newline falls inside a quoted field. */
+    private static boolean containsQuotedNewline (byte[] bytes, int from, int to) {
+        boolean quoted = false;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '"') quoted = !quoted;
+            else if (quoted && bytes[i] == '\n') return true;
+        }
+        return false;
+    }
+
+    private static boolean isNumericOrEmpty (CsvReader reader, String column) {
+        try {
+            String value = reader.get(column);
+            if (value == null || value.isEmpty()) return true;
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException | IOException e) {
+            return false;
+        }
+    }
+
+    private interface ProgressListener {
+        void rowsParsed (int delta);
+    }
+
+    /** Counts the quote characters in the bytes read through it. */
+    private static class QuoteCountingInputStream extends FilterInputStream {
+        long quotes = 0;
+
+        QuoteCountingInputStream (InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read () throws IOException {
+            int b = super.read();
+            if (b == '"') quotes++;
+            return b;
+        }
+
+        @Override
+        public int read (byte[] bytes, int offset, int length) throws IOException {
+            int n = super.read(bytes, offset, length);
+            for (int i = offset; i < offset + n; i++) {
+                if (bytes[i] == '"') quotes++;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * The sums of all numeric columns for the points in one chunk of the file, keyed on absolute pixel. The bounds of
+     * the grids are not known until all chunks are parsed, so the values cannot go straight into dense arrays.
+     */
+    private static class ChunkAccumulator {
+        final int nColumns;
+        final TLongObjectMap<double[]> valuesByPixel = new TLongObjectHashMap<>();
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        /** Whether each column has had a value in this chunk that could not be parsed as a number. */
+        final boolean[] nonNumeric;
+
+        /** The number of quote characters in the bytes of this chunk, to check that it began outside a quoted field. */
+        long quotes = 0;
+
+        /** Whether a row of this chunk of a split file had coordinates that could not be parsed. */
+        boolean failed = false;
+
+        ChunkAccumulator (int nColumns) {
+            this.nColumns = nColumns;
+            this.nonNumeric = new boolean[nColumns];
+        }
+
+        /** Return the array of column sums for the given pixel, creating it if needed and expanding the bounds. */
+        double[] valuesAt (int x, int y) {
+            long pixel = ((long) x << 32) | (y & 0xFFFFFFFFL);
+            double[] values = valuesByPixel.get(pixel);
+            if (values == null) {
+                values = new double[nColumns];
+                valuesByPixel.put(pixel, values);
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+            return values;
+        }
+
+        static int pixelX (long pixel) {
+            return (int) (pixel >>> 32);
+        }
+
+        static int pixelY (long pixel) {
+            return (int) pixel;
+        }
+    }
+}
@@ -9,11 +9,16 @@ import com.conveyal.r5.analyst.Grid;
 import com.conveyal.taui.AnalysisServerException;
 import org.json.simple.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -26,6 +31,11 @@ public abstract class GridExporter {
     /** How long request URLs are good for */
     public static final int REQUEST_TIMEOUT_MSEC = 300 * 1000;
 
+    /** The most grids that will be uploaded to S3 at once by GridStore.storeAll. */
+    public static final int MAX_CONCURRENT_UPLOADS = 8;
+
+    static final ExecutorService uploadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS);
+
     public enum Format {
         GRID, PNG, TIFF
     }
@@ -82,6 +92,27 @@ public abstract class GridExporter {
         s3file.delete();
     }
 
+    /** Gzip an already serialized grid. */
+    static byte[] gzip (byte[] bytes) {
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream);
+            gzipStream.write(bytes);
+            gzipStream.close();
+            return byteStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void writeGzippedGridToS3 (byte[] bytes, AmazonS3 s3, String bucket, String key) {
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentType("application/octet-stream");
+        om.setContentEncoding("gzip");
+        om.setContentLength(bytes.length);
+        s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(bytes), om));
+    }
+
     /**
      * Return a response to the client redirecting it to a grid in the selected format from S3, using presigned URLs.
      * If the browser does an automatic redirect, it sends our application's authorization headers to AWS S3 which
@@ -0,0 +1,162 @@
+package com.conveyal.taui.grids;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.taui.ExecutorServices;
+import com.conveyal.taui.models.GridReference;
+import com.conveyal.taui.persistence.Persistence;
+import com.google.common.hash.Hashing;
+import com.mongodb.BasicDBObject;
+import com.mongodb.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Stores opportunity grids on S3 under the SHA-256 hash of their contents in the Conveyal binary format, so that
+ * identical grids (the same LODES extract downloaded twice, or the same file uploaded to several projects) share one
+ * S3 object. A grid whose hash is already stored is neither compressed nor uploaded again. Workers cache grids by
+ * key, so they also download a shared grid only once.
+ *
+ * The number of datasets referring to each hash is kept in the gridReferences collection, and a grid is only deleted
+ * from S3 when the last dataset referring to it is deleted. The reference is marked while the grid is being deleted,
+ * and a grid stored again in the meantime waits for the deletion to finish and is then uploaded again.
+ */
+public abstract class GridStore {
+    private static final Logger LOG = LoggerFactory.getLogger(GridStore.class);
+
+    private static final String REFERENCE_COUNT = "referenceCount";
+
+    private static final String DELETING_SINCE = "deletingSince";
+
+    /** A deletion that has not finished after this long is assumed to have been abandoned. */
+    private static final int DELETION_TIMEOUT_MSEC = 5 * 60 * 1000;
+
+    /** How often to check whether a deletion has finished while waiting for it. */
+    private static final int DELETION_POLL_MSEC = 200;
+
+    /** The S3 key of a content addressed grid in the given format. */
+    public static String getKey (String hash, GridExporter.Format format) {
+        return String.format("grids/%s.%s", hash, format.toString().toLowerCase());
+    }
+
+    /**
+     * Hash, reference and where necessary upload each of the given grids. Serializing and hashing happen on the
+     * compute executor, database and S3 calls on GridExporter's upload threads. Every grid gains a reference, so the
+     * caller must release the hashes in hashesByName if it does not go on to save datasets referring to them.
+     *
+     * No more grids are serialized, waiting or uploading at once than there are upload threads, so that only a few
+     * serialized copies are held in memory at once. This method therefore blocks until the last grid has been started.
+     *
+     * @param gridsByName the grids to store, by any name unique within the map
+     * @param onStored called with the name of each grid once it is safely on S3, possibly on several threads at once
+     * @param hashesByName filled in with the hash of each grid as soon as it has been referenced, so that the caller
+     *                     knows which references to release if storing fails part way through
+     * @return a future that completes when all grids are stored, or completes exceptionally if any could not be
+     */
+    public static CompletableFuture<Void> storeAll (Map<String, Grid> gridsByName, AmazonS3 s3,
+                                                    String bucket, Consumer<String> onStored,
+                                                    Map<String, String> hashesByName) {
+        List<CompletableFuture<Void>> stores = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(GridExporter.MAX_CONCURRENT_UPLOADS);
+        gridsByName.forEach((name, grid) -> {
+            inFlight.acquireUninterruptibly();
+            stores.add(CompletableFuture.supplyAsync(() -> serialize(grid), ExecutorServices.compute)
+                    .thenComposeAsync(bytes -> {
+                        String hash = Hashing.sha256().hashBytes(bytes).toString();
+                        String key = getKey(hash, GridExporter.Format.GRID);
+                        GridReference reference = Persistence.gridReferences.increment(hash, REFERENCE_COUNT, 1);
+                        hashesByName.put(name, hash);
+                        // If the grid is being deleted, it must be uploaded again once the deletion is finished.
+                        boolean deleted = reference.deletingSince != null && awaitDeletion(hash);
+                        if (!deleted && reference.referenceCount > 1 && s3.doesObjectExist(bucket, key)) {
+                            LOG.info("Grid {} is already stored as {}, not uploading it again", name, key);
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        return CompletableFuture.supplyAsync(() -> GridExporter.gzip(bytes), ExecutorServices.compute)
+                                .thenAcceptAsync(gzipped -> GridExporter.writeGzippedGridToS3(gzipped, s3, bucket, key),
+                                        GridExporter.uploadExecutor);
+                    }, GridExporter.uploadExecutor)
+                    .whenComplete((result, throwable) -> inFlight.release())
+                    .thenRun(() -> onStored.accept(name)));
+        });
+        return CompletableFuture.allOf(stores.toArray(new CompletableFuture[stores.size()]));
+    }
+
+    /**
+     * Remove one reference to the grid with the given hash, deleting it in all formats from S3 if that was the last.
+     */
+    public static void release (String hash, AmazonS3 s3, String bucket) {
+        GridReference reference = Persistence.gridReferences.increment(hash, REFERENCE_COUNT, -1);
+        if (reference.referenceCount > 0) return;
+
+        // Only delete the grid if it has not been referenced again since the decrement, marking the reference so that
+        // a grid stored while it is being deleted waits for the deletion and is then uploaded again.
+        GridReference deleting = Persistence.gridReferences.modifyWhere(
+                QueryBuilder.start("_id").is(hash).and(REFERENCE_COUNT).lessThanEquals(0).and(DELETING_SINCE).is(null).get(),
+                new BasicDBObject("$set", new BasicDBObject(DELETING_SINCE, System.currentTimeMillis())));
+        if (deleting == null) return;
+
+        LOG.info("Last reference to grid {} released, deleting it", hash);
+        try {
+            for (GridExporter.Format format : GridExporter.Format.values()) {
+                String key = getKey(hash, format);
+                if (s3.doesObjectExist(bucket, key)) s3.deleteObject(bucket, key);
+            }
+        } finally {
+            // Remove the reference, unless the grid was referenced again during the deletion, in which case only
+            // clear the mark to let the storing thread upload it again.
+            GridReference removed = Persistence.gridReferences.removeWhere(QueryBuilder.start("_id").is(hash)
+                    .and(REFERENCE_COUNT).lessThanEquals(0).get());
+            if (removed == null) {
+                Persistence.gridReferences.modifyWhere(QueryBuilder.start("_id").is(hash).get(),
+                        new BasicDBObject("$unset", new BasicDBObject(DELETING_SINCE, "")));
+            }
+        }
+    }
+
+    /**
+     * Wait for the deletion of the grid with the given hash to finish.
+     *
+     * @return true once the deletion has finished or been abandoned, so the grid is no longer stored on S3
+     */
+    private static boolean awaitDeletion (String hash) {
+        LOG.info("Grid {} is being deleted, waiting to upload it again", hash);
+        while (true) {
+            GridReference reference = Persistence.gridReferences.get(hash);
+            if (reference == null || reference.deletingSince == null) return true;
+            if (System.currentTimeMillis() - reference.deletingSince > DELETION_TIMEOUT_MSEC) {
+                LOG.warn("Deletion of grid {} was abandoned, uploading it again", hash);
+                Persistence.gridReferences.modifyWhere(QueryBuilder.start("_id").is(hash).get(),
+                        new BasicDBObject("$unset", new BasicDBObject(DELETING_SINCE, "")));
+                return true;
+            }
+            try {
+                Thread.sleep(DELETION_POLL_MSEC);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** Serialize a grid in the Conveyal binary format, uncompressed, so it can be hashed. */
+    private static byte[] serialize (Grid grid) {
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            grid.write(byteStream);
+            return byteStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
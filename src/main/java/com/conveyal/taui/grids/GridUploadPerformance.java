@@ -0,0 +1,74 @@
+package com.conveyal.taui.grids;
+
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.taui.ExecutorServices;
+import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.InMemoryS3;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compare uploading the grids of an opportunity dataset one after another with storing them concurrently through
+ * GridStore.storeAll, as dataset uploads do. This is not an automated unit test, it's a manually run performance
+ * indicator. It uses an in-memory stand-in for S3 with a simulated round trip time, so it can be run offline, but
+ * GridStore counts references to grids in the database configured in analysis.properties, so that must be running.
+ * The references taken in each round are released again afterward.
+ *
+ * Arguments (all optional): number of grids, grid width and height in pixels, simulated S3 latency in milliseconds.
+ */
+public class GridUploadPerformance {
+
+    private static final String BUCKET = "grids";
+
+    public static void main (String[] args) throws Exception {
+        Persistence.initialize();
+        int nGrids = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        System.out.println(String.format("Uploading %d grids of %dx%d pixels with %d ms simulated latency.",
+                nGrids, size, size, latency));
+
+        Map<String, Grid> grids = randomGrids(nGrids, size);
+
+        for (int i = 0; i < 3; i++) {
+            InMemoryS3 serialS3 = new InMemoryS3(latency);
+            long start = System.currentTimeMillis();
+            for (Map.Entry<String, Grid> e : grids.entrySet()) {
+                GridExporter.writeToS3(e.getValue(), serialS3, BUCKET, e.getKey(), GridExporter.Format.GRID);
+            }
+            long serialTime = System.currentTimeMillis() - start;
+
+            InMemoryS3 concurrentS3 = new InMemoryS3(latency);
+            start = System.currentTimeMillis();
+            Map<String, String> hashesByName = new ConcurrentHashMap<>();
+            GridStore.storeAll(grids, concurrentS3, BUCKET, name -> {}, hashesByName).join();
+            long concurrentTime = System.currentTimeMillis() - start;
+
+            System.out.println(String.format("serial %d ms, concurrent %d ms (%d objects, %d bytes)",
+                    serialTime, concurrentTime, concurrentS3.size(), concurrentS3.totalBytes()));
+            hashesByName.values().forEach(hash -> GridStore.release(hash, concurrentS3, BUCKET));
+        }
+
+        ExecutorServices.compute.shutdown();
+        System.exit(0);
+    }
+
+    /** Grids with a few opportunities scattered over most pixels, similar to a block-level census extract. */
+    private static Map<String, Grid> randomGrids (int nGrids, int size) {
+        Random random = new Random(42);
+        Map<String, Grid> grids = new HashMap<>();
+        for (int g = 0; g < nGrids; g++) {
+            Grid grid = new Grid(9, size, size, 200_000, 150_000);
+            for (int x = 0; x < size; x++) {
+                for (int y = 0; y < size; y++) {
+                    if (random.nextDouble() < 0.7) grid.grid[x][y] = random.nextInt(50);
+                }
+            }
+            grids.put(String.format("region/grid-%d.grid", g), grid);
+        }
+        return grids;
+    }
+}
@@ -1,21 +1,40 @@
 package com.conveyal.taui.grids;
 
 import com.conveyal.data.census.S3SeamlessSource;
+import com.conveyal.data.census.SeamlessSource;
 import com.conveyal.data.geobuf.GeobufFeature;
 import com.conveyal.r5.analyst.Grid;
 import com.conveyal.taui.AnalysisServerConfig;
+import com.conveyal.taui.ExecutorServices;
 import com.conveyal.taui.models.Bounds;
+import com.vividsolutions.jts.geom.Envelope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Fetch data from the seamless-census s3 buckets and convert it from block-level vector data (polygons)
  * to raster opportunity density data (grids).
+ *
+ * The seamless-census tiles covering the bounds are fetched concurrently. The rows of the grids are then divided into
+ * bands holding roughly equal numbers of features, and each band is rasterized by one compute task, which computes the
+ * pixel weights of the features touching its band once and adds the weighted values of every attribute straight into
+ * the grids. Tasks only write to the rows of their own band, so nothing is buffered between computing the weights and
+ * adding them up, and no two tasks ever write to the same cell.
  */
 public class SeamlessCensusGridExtractor {
     private static final Logger LOG = LoggerFactory.getLogger(SeamlessCensusGridExtractor.class);
@@ -23,50 +42,238 @@ public class SeamlessCensusGridExtractor {
     // The Web Mercator zoom level of the census data grids that will be created.
     public static final int ZOOM = 9;
 
+    /** The zoom level of the tiles in which seamless-census stores its data. */
+    private static final int TILE_ZOOM = 8;
+
+    /** The most tiles that will be fetched from S3 at once. */
+    private static final int MAX_CONCURRENT_FETCHES = 8;
+
+    /** Aim for this many bands of rows per compute thread, so that threads finishing early can pick up remaining work. */
+    private static final int BANDS_PER_THREAD = 4;
+
     private static S3SeamlessSource source = new S3SeamlessSource(AnalysisServerConfig.seamlessCensusRegion,
             AnalysisServerConfig.seamlessCensusBucket);
 
+    private static final ExecutorService fetchExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_FETCHES);
+
     /**
      * Retrieve data for bounds and save to a bucket under a given key
      */
     public static Map<String, Grid> retrieveAndExtractCensusDataForBounds (Bounds bounds) throws IOException {
+        return extractCensusData(source, bounds);
+    }
+
+    /**
+     * Retrieve the census features within the bounds from the given source and rasterize each of their numeric
+     * attributes onto a separate grid. This is separate from retrieveAndExtractCensusDataForBounds so it can be run
+     * against a local copy of the seamless-census tiles.
+     */
+    public static Map<String, Grid> extractCensusData (SeamlessSource source, Bounds bounds) throws IOException {
         long startTime = System.currentTimeMillis();
 
-        // All the features are buffered in a Map in memory. This could be problematic on large areas.
-        Map<Long, GeobufFeature> features = source.extract(bounds.north, bounds.east, bounds.south, bounds.west, false);
+        // All the features are buffered in memory. This could be problematic on large areas.
+        List<GeobufFeature> features = fetchFeatures(source, bounds);
+
+        long fetchTime = System.currentTimeMillis();
+        Map<String, Grid> gridsByName = rasterizeFeatures(features, bounds);
+
+        long endTime = System.currentTimeMillis();
+        LOG.info("Extracting Census data took {} seconds ({} fetching {} features, {} rasterizing {} attributes)",
+                (endTime - startTime) / 1000, (fetchTime - startTime) / 1000, features.size(),
+                (endTime - fetchTime) / 1000, gridsByName.size());
+
+        return gridsByName;
+    }
+
+    /**
+     * Rasterize each numeric attribute of the given features onto a separate grid covering the bounds, in parallel.
+     * This is separate from extractCensusData so that it can be tested without seamless-census tiles.
+     *
+     * @return the grids by attribute name, which is empty if no feature has a numeric attribute
+     */
+    static Map<String, Grid> rasterizeFeatures (List<GeobufFeature> features, Bounds bounds) {
+        // Give each numeric attribute (column) in the incoming census data an index and a grid.
+        Map<String, Integer> attributeIndexes = new HashMap<>();
+        List<Grid> grids = new ArrayList<>();
+        for (GeobufFeature feature : features) {
+            for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
+                if (e.getValue() instanceof Number && !attributeIndexes.containsKey(e.getKey())) {
+                    attributeIndexes.put(e.getKey(), grids.size());
+                    grids.add(new Grid(ZOOM, bounds.north, bounds.east, bounds.south, bounds.west));
+                }
+            }
+        }
 
-        if (features.isEmpty()) {
+        if (grids.isEmpty()) {
             LOG.info("No seamless census data found here, not pre-populating grids");
             return new HashMap<>();
         }
 
-        // One string naming each attribute (column) in the incoming census data.
-        Map<String, Grid> grids = new HashMap<>();
-        features.values().stream().forEach(feature -> {
-            List weights = null;
-            // Iterate over all of the features
+        // Rasterize the features in parallel, one task per band of rows.
+        Grid template = grids.get(0);
+        List<Callable<Object>> rasterizeTasks = new ArrayList<>();
+        for (RowBand band : splitIntoBands(features, template)) {
+            rasterizeTasks.add(() -> {
+                rasterize(band, template, attributeIndexes, grids);
+                return null;
+            });
+        }
+        invokeAll(ExecutorServices.compute, rasterizeTasks);
+
+        Map<String, Grid> gridsByName = new HashMap<>();
+        attributeIndexes.forEach((name, index) -> gridsByName.put(name, grids.get(index)));
+        return gridsByName;
+    }
+
+    /**
+     * Fetch the features within the bounds one tile at a time, several tiles at once, so that each fetch covers the
+     * same area whatever the shape of the bounds. Features crossing tile boundaries are stored in every tile they
+     * touch, so they are deduplicated on their ID.
+     */
+    private static List<GeobufFeature> fetchFeatures (SeamlessSource source, Bounds bounds) throws IOException {
+        int westTile = lonToTile(bounds.west);
+        int eastTile = lonToTile(bounds.east);
+        int northTile = latToTile(bounds.north);
+        int southTile = latToTile(bounds.south);
+        Map<Long, GeobufFeature> features = new ConcurrentHashMap<>();
+        List<Callable<Object>> fetchTasks = new ArrayList<>();
+        for (int x = westTile; x <= eastTile; x++) {
+            double west = Math.max(bounds.west, tileToLon(x));
+            double east = Math.min(bounds.east, tileToLon(x + 1));
+            for (int y = northTile; y <= southTile; y++) {
+                double north = Math.min(bounds.north, tileToLat(y));
+                double south = Math.max(bounds.south, tileToLat(y + 1));
+                fetchTasks.add(() -> {
+                    features.putAll(source.extract(north, east, south, west, false));
+                    return null;
+                });
+            }
+        }
+        try {
+            invokeAll(fetchExecutor, fetchTasks);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new ArrayList<>(features.values());
+    }
+
+    /**
+     * Divide the rows of the grids into bands holding roughly equal numbers of features, so that the bands take about
+     * as long as one another to rasterize. Each feature is listed in every band its envelope touches.
+     */
+    private static List<RowBand> splitIntoBands (List<GeobufFeature> features, Grid template) {
+        List<FeatureRows> featureRows = new ArrayList<>(features.size());
+        for (GeobufFeature feature : features) {
+            Envelope envelope = feature.geometry.getEnvelopeInternal();
+            int firstRow = Math.max(0, Grid.latToPixel(envelope.getMaxY(), ZOOM) - template.north);
+            int lastRow = Math.min(template.height - 1, Grid.latToPixel(envelope.getMinY(), ZOOM) - template.north);
+            if (firstRow <= lastRow) featureRows.add(new FeatureRows(feature, firstRow, lastRow));
+        }
+        featureRows.sort(Comparator.comparingInt(f -> f.firstRow));
+
+        int nBands = Math.max(1, Math.min(template.height,
+                Runtime.getRuntime().availableProcessors() * BANDS_PER_THREAD));
+        List<RowBand> bands = new ArrayList<>();
+        int bandStart = 0;
+        for (int b = 1; b <= nBands && bandStart < template.height; b++) {
+            // End each band where the next share of the features begins, but always advance by at least one row.
+            int bandEnd = b == nBands || featureRows.isEmpty() ? template.height :
+                    Math.max(bandStart + 1, featureRows.get(featureRows.size() * b / nBands).firstRow);
+            bands.add(new RowBand(bandStart, Math.min(bandEnd, template.height)));
+            bandStart = bandEnd;
+        }
+        for (FeatureRows f : featureRows) {
+            for (RowBand band : bands) {
+                if (f.firstRow < band.endRow && f.lastRow >= band.startRow) band.features.add(f.feature);
+            }
+        }
+        return bands;
+    }
+
+    /**
+     * Called on a compute thread to add the weighted values of all attributes of the features touching a band into
+     * the rows of the grids within that band.
+     */
+    private static void rasterize (RowBand band, Grid template, Map<String, Integer> attributeIndexes,
+                                   List<Grid> grids) {
+        int nAttributes = attributeIndexes.size();
+        double[] values = new double[nAttributes];
+        for (GeobufFeature feature : band.features) {
+            boolean any = false;
             for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
                 if (!(e.getValue() instanceof Number)) continue;
-                Number value = (Number) e.getValue();
-                String key = e.getKey();
-
-                Grid grid = grids.get(key);
-                if (grid == null) {
-                    grid = new Grid(ZOOM, bounds.north, bounds.east, bounds.south, bounds.west);
-                    grids.put(key, grid);
+                double value = ((Number) e.getValue()).doubleValue();
+                values[attributeIndexes.get(e.getKey())] = value;
+                any |= value != 0;
+            }
+            if (any) {
+                for (Grid.PixelWeight pixel : template.getPixelWeights(feature.geometry)) {
+                    if (pixel.y < band.startRow || pixel.y >= band.endRow) continue;
+                    for (int a = 0; a < nAttributes; a++) {
+                        if (values[a] != 0) grids.get(a).grid[pixel.x][pixel.y] += values[a] * pixel.weight;
+                    }
                 }
+            }
+            Arrays.fill(values, 0);
+        }
+    }
 
-                if (weights == null) {
-                    weights = grid.getPixelWeights(feature.geometry);
-                }
+    /** The rows [startRow, endRow) of the grids, and the features touching them. */
+    private static class RowBand {
+        final int startRow;
+        final int endRow;
+        final List<GeobufFeature> features = new ArrayList<>();
 
-                grid.incrementFromPixelWeights(weights, value.doubleValue());
-            }
-        });
+        RowBand (int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+    }
 
-        long endTime = System.currentTimeMillis();
-        LOG.info("Extracting Census data took {} seconds", (endTime - startTime) / 1000);
+    /** A feature and the first and last rows of the grids its envelope touches. */
+    private static class FeatureRows {
+        final GeobufFeature feature;
+        final int firstRow;
+        final int lastRow;
+
+        FeatureRows (GeobufFeature feature, int firstRow, int lastRow) {
+            this.feature = feature;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+    }
+
+    private static int lonToTile (double lon) {
+        return Grid.lonToPixel(lon, TILE_ZOOM) / 256;
+    }
+
+    private static double tileToLon (int tile) {
+        return tile / Math.pow(2, TILE_ZOOM) * 360 - 180;
+    }
+
+    private static int latToTile (double lat) {
+        return Grid.latToPixel(lat, TILE_ZOOM) / 256;
+    }
+
+    /** The latitude of the northern edge of a row of Web Mercator tiles. */
+    private static double tileToLat (int tile) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * tile / Math.pow(2, TILE_ZOOM)))));
+    }
 
-        return grids;
+    /** Run all the tasks on the executor and wait for them to finish, rethrowing the first failure. */
+    private static <T> List<T> invokeAll (ExecutorService executor, List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw new UncheckedIOException((IOException) cause);
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+        return results;
     }
 }
@@ -0,0 +1,269 @@
+package com.conveyal.taui.grids;
+
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.r5.util.ShapefileReader;
+import com.conveyal.taui.AnalysisServerException;
+import com.conveyal.taui.ExecutorServices;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import static com.conveyal.r5.analyst.Grid.latToPixel;
+import static com.conveyal.r5.analyst.Grid.lonToPixel;
+
+/**
+ * Rasterizes the features of a shapefile onto grids using several threads.
+ *
+ * Features are streamed from the ShapefileReader on the calling thread, which only pulls out their geometries and
+ * numeric attributes. Batches of features are handed to the compute executor, which does the expensive part
+ * (computing the fraction of each feature falling in each pixel). No more than a fixed number of batches may be
+ * waiting at once, so a large shapefile is never fully loaded into memory.
+ *
+ * All grids being built share the same bounds, so rather than giving each thread its own copy of every grid, threads
+ * add their results directly into the shared grids under a set of locks striped across rows of pixels.
+ */
+public class ShapefileRasterizer {
+    private static final Logger LOG = LoggerFactory.getLogger(ShapefileRasterizer.class);
+
+    /** The number of features handed to a compute thread at once. */
+    static final int BATCH_SIZE = 256;
+
+    /** The most batches of features that may be waiting for or undergoing rasterization at once. */
+    static final int MAX_PENDING_BATCHES = Runtime.getRuntime().availableProcessors() * 2;
+
+    /** The number of locks guarding the rows of the grids. Row y is guarded by lock y % N_STRIPES. */
+    private static final int N_STRIPES = 64;
+
+    /** The key under which the single grid is stored when building a mask. */
+    private static final String MASK = "mask";
+
+    private final ReentrantLock[] stripes = new ReentrantLock[N_STRIPES];
+
+    private final int zoom;
+
+    private final Envelope bounds;
+
+    /** Grids for each attribute, created by the reading thread the first time the attribute is seen. */
+    private final Map<String, Grid> grids = new ConcurrentHashMap<>();
+
+    private ShapefileRasterizer (int zoom, Envelope bounds) {
+        this.zoom = zoom;
+        this.bounds = bounds;
+        for (int i = 0; i < N_STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Create one opportunity grid for each numeric attribute of the features in the given shapefile. Point features
+     * contribute their whole value to the pixel containing them, and polygon features spread their value over the
+     * pixels they overlap in proportion to the area of the feature falling in each pixel.
+     */
+    public static Map<String, Grid> rasterizeOpportunities (File shapefile, int zoom,
+                                                            BiConsumer<Integer, Integer> statusListener) throws Exception {
+        ShapefileReader reader = new ShapefileReader(shapefile);
+        try {
+            ShapefileRasterizer rasterizer = new ShapefileRasterizer(zoom, reader.wgs84Bounds());
+            rasterizer.rasterize(reader, false, statusListener);
+            return new HashMap<>(rasterizer.grids);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Create a grid in which each pixel holds the fraction of its area covered by the polygons in the given shapefile,
+     * scaled so that complete coverage is the given maximum value. Each polygon is rasterized separately rather than
+     * first merging them all into one huge geometry. This is exact as long as the polygons do not overlap one
+     * another, and where they do overlap the coverage of a pixel is capped at the maximum value.
+     */
+    public static Grid rasterizeMask (File shapefile, int zoom, double maxValue) throws Exception {
+        ShapefileReader reader = new ShapefileReader(shapefile);
+        try {
+            Envelope env = reader.wgs84Bounds();
+            ShapefileRasterizer rasterizer = new ShapefileRasterizer(zoom, env);
+            rasterizer.rasterize(reader, true, null);
+            Grid mask = rasterizer.grids.get(MASK);
+            if (mask == null) {
+                // There were no polygons, return an empty mask covering the shapefile.
+                return rasterizer.newGrid();
+            }
+            for (double[] column : mask.grid) {
+                for (int y = 0; y < column.length; y++) {
+                    column[y] = Math.min(column[y], 1) * maxValue;
+                }
+            }
+            return mask;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Stream all features from the reader, extracting what is needed on this thread and passing it in batches to the
+     * compute executor. Blocks until all features have been rasterized.
+     */
+    private void rasterize (ShapefileReader reader, boolean mask, BiConsumer<Integer, Integer> statusListener)
+            throws Exception {
+        long startTime = System.currentTimeMillis();
+        int total = reader.getFeatureCount();
+        AtomicInteger completed = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Semaphore pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+
+        try {
+            Iterator<SimpleFeature> features = reader.wgs84Stream().iterator();
+            while (features.hasNext() && failure.get() == null) {
+                List<FeatureValues> batch = new ArrayList<>(BATCH_SIZE);
+                while (features.hasNext() && batch.size() < BATCH_SIZE) {
+                    FeatureValues values = mask ? maskValues(features.next()) : opportunityValues(features.next());
+                    if (values != null) batch.add(values);
+                }
+                pendingBatches.acquire();
+                ExecutorServices.compute.execute(() -> {
+                    try {
+                        for (FeatureValues values : batch) {
+                            if (failure.get() != null) break;
+                            rasterizeFeature(values, mask);
+                            int count = completed.incrementAndGet();
+                            if (statusListener != null) statusListener.accept(count, total);
+                            if (count % 10_000 == 0) LOG.info("Rasterized {} / {} features", count, total);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        pendingBatches.release();
+                    }
+                });
+            }
+        } finally {
+            // Wait for all outstanding batches to finish, even if reading failed part way through.
+            pendingBatches.acquireUninterruptibly(MAX_PENDING_BATCHES);
+            pendingBatches.release(MAX_PENDING_BATCHES);
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof Exception) throw (Exception) t;
+        if (t != null) throw new RuntimeException(t);
+
+        if (statusListener != null) statusListener.accept(total, total);
+        LOG.info("Rasterizing {} features took {} seconds", completed.get(),
+                (System.currentTimeMillis() - startTime) / 1000);
+    }
+
+    /**
+     * Pull the geometry and all nonzero numeric attributes out of a feature. A grid is created for every numeric
+     * attribute, as Grid.fromShapefile does, so an attribute that is zero in every feature still yields an empty grid.
+     */
+    private FeatureValues opportunityValues (SimpleFeature feature) {
+        Geometry geometry = (Geometry) feature.getDefaultGeometry();
+        if (!(geometry instanceof Point || geometry instanceof Polygon || geometry instanceof MultiPolygon)) {
+            throw AnalysisServerException.fileUpload("Unsupported geometry type " + geometry.getGeometryType());
+        }
+        List<Grid> featureGrids = new ArrayList<>();
+        List<Double> featureValues = new ArrayList<>();
+        for (Property property : feature.getProperties()) {
+            Object value = property.getValue();
+            if (!(value instanceof Number)) continue;
+            Grid grid = grids.computeIfAbsent(property.getName().getLocalPart(), name -> newGrid());
+            double numericValue = ((Number) value).doubleValue();
+            if (numericValue == 0) continue;
+            featureGrids.add(grid);
+            featureValues.add(numericValue);
+        }
+        if (featureGrids.isEmpty()) return null;
+        return new FeatureValues(geometry, featureGrids, featureValues);
+    }
+
+    /** Masks only use polygon geometries, and every polygon contributes its coverage fraction to the one grid. */
+    private FeatureValues maskValues (SimpleFeature feature) {
+        Geometry geometry = (Geometry) feature.getDefaultGeometry();
+        if (!(geometry instanceof Polygon || geometry instanceof MultiPolygon)) return null;
+        List<Grid> featureGrids = new ArrayList<>(1);
+        featureGrids.add(grids.computeIfAbsent(MASK, name -> newGrid()));
+        List<Double> featureValues = new ArrayList<>(1);
+        featureValues.add(1d);
+        return new FeatureValues(geometry, featureGrids, featureValues);
+    }
+
+    /** Called on a compute thread. All the grids share the same bounds, so the weights only need computing once. */
+    private void rasterizeFeature (FeatureValues feature, boolean mask) {
+        Grid first = feature.grids.get(0);
+        if (feature.geometry instanceof Point) {
+            Point point = (Point) feature.geometry;
+            int x = lonToPixel(point.getX(), zoom) - first.west;
+            int y = latToPixel(point.getY(), zoom) - first.north;
+            if (x < 0 || x >= first.width || y < 0 || y >= first.height) return;
+            ReentrantLock lock = stripes[y % N_STRIPES];
+            lock.lock();
+            try {
+                for (int g = 0; g < feature.grids.size(); g++) {
+                    feature.grids.get(g).grid[x][y] += feature.values.get(g);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            // Masks record the fraction of each pixel covered, opportunities the fraction of the feature in each pixel.
+            List<Grid.PixelWeight> weights = first.getPixelWeights(feature.geometry, mask);
+            for (int g = 0; g < feature.grids.size(); g++) {
+                incrementFromPixelWeights(feature.grids.get(g), weights, feature.values.get(g));
+            }
+        }
+    }
+
+    /**
+     * Add the weighted value into the grid, holding the lock for each row's stripe. Pixel weights come out of R5
+     * ordered by row, so the lock only changes when the row does.
+     */
+    private void incrementFromPixelWeights (Grid grid, List<Grid.PixelWeight> weights, double value) {
+        ReentrantLock heldLock = null;
+        try {
+            for (Grid.PixelWeight pixel : weights) {
+                ReentrantLock lock = stripes[pixel.y % N_STRIPES];
+                if (lock != heldLock) {
+                    if (heldLock != null) heldLock.unlock();
+                    lock.lock();
+                    heldLock = lock;
+                }
+                grid.grid[pixel.x][pixel.y] += pixel.weight * value;
+            }
+        } finally {
+            if (heldLock != null) heldLock.unlock();
+        }
+    }
+
+    private Grid newGrid () {
+        return new Grid(zoom, bounds.getMaxY(), bounds.getMaxX(), bounds.getMinY(), bounds.getMinX());
+    }
+
+    /** The parts of a feature needed for rasterization, extracted on the reading thread. */
+    private static class FeatureValues {
+        final Geometry geometry;
+        final List<Grid> grids;
+        final List<Double> values;
+
+        FeatureValues (Geometry geometry, List<Grid> grids, List<Double> values) {
+            this.geometry = geometry;
+            this.grids = grids;
+            this.values = values;
+        }
+    }
+}
@@ -3,22 +3,16 @@ package com.conveyal.taui.models;
 import com.conveyal.r5.analyst.Grid;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
 import com.conveyal.r5.analyst.fare.InRoutingFareCalculator;
-import com.conveyal.r5.analyst.scenario.Modification;
 import com.conveyal.r5.analyst.scenario.RoadCongestion;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.TransitModes;
-import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.taui.persistence.Persistence;
-import com.mongodb.QueryBuilder;
 
 import java.time.LocalDate;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.List;
 import java.util.stream.Collectors;
-import java.util.zip.CRC32;
 
 /**
  * This is the request sent from the UI. It is actually distinct from the requests sent to the R5 workers, though it
@@ -76,22 +70,11 @@ public class AnalysisRequest {
     public int maxFare;
     public InRoutingFareCalculator inRoutingFareCalculator;
 
-    /**
-     * Get all of the modifications for a project id that are in the Variant and map them to their corresponding r5 mod
-     */
-    private static List<Modification> modificationsForProject (String accessGroup, String projectId, int variantIndex) {
-        return Persistence.modifications
-                .findPermitted(QueryBuilder.start("projectId").is(projectId).get(), accessGroup)
-                .stream()
-                .filter(m -> variantIndex < m.variants.length && m.variants[variantIndex])
-                .map(com.conveyal.taui.models.Modification::toR5)
-                .collect(Collectors.toList());
-    }
-
     /**
      * Finds the modifications for the specified project and variant, maps them to their corresponding R5 modification
      * types, creates a checksum from those modifications, and adds them to the AnalysisTask along with the rest of the
-     * request.
+     * request. The converted modifications and checksum are cached until one of the modifications changes, see
+     * CompiledScenario.
      *
      * This method takes a task as a parameter, modifies that task, and also returns that same task.
      * This is because we have two subtypes of AnalysisTask and need to be able to create both.
@@ -100,23 +83,20 @@ public class AnalysisRequest {
 
         // Fetch the modifications associated with this project, filtering for the selected scenario (denoted here as
         // "variant"). There are no modifications in the baseline scenario (which is denoted by special index -1).
-        List<Modification> modifications = new ArrayList<>();
-        if (variantIndex > -1) {
-            modifications = modificationsForProject(project.accessGroup, projectId, variantIndex);
-        }
+        CompiledScenario compiled = variantIndex > -1
+                ? CompiledScenario.forVariant(project.accessGroup, projectId, variantIndex)
+                : CompiledScenario.BASELINE;
 
         // The CRC of the modifications in this scenario is appended to the scenario ID to identify a unique revision of
         // the scenario (still denoted here as variant) allowing the worker to cache and reuse networks built by
         // applying that exact revision of the scenario to a base network.
-        CRC32 crc = new CRC32();
-        crc.update(JsonUtilities.objectToJsonBytes(modifications));
-        long crcValue = crc.getValue();
+        long crcValue = compiled.crc;
 
         task.scenario = new Scenario();
         // FIXME Job IDs need to be unique. Why are we setting this to the project and variant? This only works because the job ID is overwritten when the job is enqueued.
         task.jobId = String.format("%s-%s-%s", projectId, variantIndex, crcValue);
         task.scenario.id = task.scenarioId = task.jobId;
-        task.scenario.modifications = modifications;
+        task.scenario.modifications = compiled.modifications;
         task.graphId = project.bundleId;
         task.workerVersion = workerVersion;
         task.maxFare = this.maxFare;
@@ -1,11 +1,15 @@
 package com.conveyal.taui.models;
 
 import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Stop;
 import com.conveyal.taui.AnalysisServerException;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.vividsolutions.jts.geom.Envelope;
 
 import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.List;
 
@@ -33,6 +37,12 @@ public class Bundle extends Model implements Cloneable {
 
     public String errorCode;
 
+    /** How long it took to prebuild the transport network of this bundle in milliseconds, or 0 if it wasn't. */
+    public long networkBuildTime;
+
+    /** The size in bytes of the prebuilt, serialized transport network, or 0 if it wasn't prebuilt. */
+    public long networkSize;
+
     public static String bundleScopeFeedId (String feedId, String bundleId) {
         return String.format("%s_%s", feedId, bundleId);
     }
@@ -56,8 +66,25 @@ public class Bundle extends Model implements Cloneable {
 
         public LocalDate serviceStart;
         public LocalDate serviceEnd;
+
+        /**
+         * A bitmap of the dates on which the feed has service, as returned by BitSet.toByteArray. Bit i is set if
+         * there is service on serviceStart plus i days. This lets the dates of service be checked without loading the
+         * feed.
+         */
+        public byte[] activeDates;
+
         public long checksum;
 
+        /**
+         * The SHA-256 hash of the uploaded feed file. A feed with the same hash uploaded in a later bundle reuses this
+         * summary and the already loaded feed it refers to.
+         */
+        public String sha256;
+
+        /** The bounding box of the stops in the feed. */
+        public Bounds bounds;
+
         public FeedSummary(GTFSFeed feed, String bundleId) {
             feedId = feed.feedId;
             bundleScopedFeedId = bundleScopeFeedId(feed.feedId, bundleId);
@@ -65,6 +92,23 @@ public class Bundle extends Model implements Cloneable {
             checksum = feed.checksum;
 
             setServiceDates(feed);
+            computeBounds(feed);
+        }
+
+        /**
+         * Set the bounds to the bounding box of all stops in the feed. This is not named setBounds, as Jackson would take
+         * that for the setter of the bounds field, and ignoring it would then hide the field as well.
+         */
+        public void computeBounds (GTFSFeed feed) {
+            Envelope envelope = new Envelope();
+            for (Stop s : feed.stops.values()) {
+                envelope.expandToInclude(s.stop_lon, s.stop_lat);
+            }
+            bounds = new Bounds();
+            bounds.north = envelope.getMaxY();
+            bounds.south = envelope.getMinY();
+            bounds.east = envelope.getMaxX();
+            bounds.west = envelope.getMinX();
         }
 
         /**
@@ -80,6 +124,18 @@ public class Bundle extends Model implements Cloneable {
             datesOfService.sort(Comparator.naturalOrder());
             serviceStart = datesOfService.get(0);
             serviceEnd = datesOfService.get(datesOfService.size() - 1);
+
+            BitSet dates = new BitSet();
+            for (LocalDate date : datesOfService) {
+                dates.set((int) ChronoUnit.DAYS.between(serviceStart, date));
+            }
+            activeDates = dates.toByteArray();
+        }
+
+        /** @return whether the feed has service on the given date, according to the bitmap computed when loading it. */
+        public boolean hasServiceOn (LocalDate date) {
+            if (activeDates == null || date.isBefore(serviceStart) || date.isAfter(serviceEnd)) return false;
+            return BitSet.valueOf(activeDates).get((int) ChronoUnit.DAYS.between(serviceStart, date));
         }
 
         /**
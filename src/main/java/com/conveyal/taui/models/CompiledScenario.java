@@ -0,0 +1,125 @@
+package com.conveyal.taui.models;
+
+import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.taui.persistence.Persistence;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.mongodb.QueryBuilder;
+import org.mongojack.DBProjection;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * The modifications of one variant of a project converted to R5 modifications, along with the CRC of their JSON
+ * serialization that identifies this exact revision of the scenario to the workers.
+ *
+ * Converting add trip pattern modifications recomputes the stop geometry of every segment, and hashing serializes
+ * every modification, which is wasted work when the user is only moving the origin of a single point analysis around.
+ * So compiled scenarios are cached by project, variant and the ID and nonce of each modification in the variant. The
+ * nonce changes whenever a modification is saved, so an edit, addition or deletion produces a new key and the old
+ * entry is never used again, leaving it to expire.
+ */
+public class CompiledScenario {
+    private static final int CACHE_SIZE = 200;
+
+    private static final Cache<String, CompiledScenario> cache = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .expireAfterAccess(30, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    /** The baseline, which has no modifications. */
+    public static final CompiledScenario BASELINE = compile(Collections.emptyList());
+
+    /** The R5 modifications, shared by every task using this scenario, so not to be modified. */
+    public final List<com.conveyal.r5.analyst.scenario.Modification> modifications;
+
+    public final long crc;
+
+    private CompiledScenario (List<com.conveyal.r5.analyst.scenario.Modification> modifications, long crc) {
+        this.modifications = Collections.unmodifiableList(modifications);
+        this.crc = crc;
+    }
+
+    /**
+     * Get the compiled modifications of a variant of a project. Checking whether the cached copy is current reads only
+     * the IDs and nonces of the modifications; the modifications themselves are only read and converted on a miss.
+     */
+    public static CompiledScenario forVariant (String accessGroup, String projectId, int variantIndex) {
+        QueryBuilder query = QueryBuilder.start("projectId").is(projectId);
+        return forVariant(projectId, variantIndex,
+                () -> Persistence.modifications
+                        .findPermitted(query.get(), DBProjection.include("type", "nonce", "variants"), accessGroup),
+                () -> Persistence.modifications.findPermitted(query.get(), accessGroup));
+    }
+
+    /**
+     * The cache lookup of forVariant, given ways of reading the versions (IDs, nonces and variants) and the complete
+     * modifications of the project. This is separate so that it can be tested and timed without the database.
+     */
+    static CompiledScenario forVariant (String projectId, int variantIndex,
+                                        Supplier<Collection<Modification>> readVersions,
+                                        Supplier<Collection<Modification>> readModifications) {
+        String key = key(projectId, variantIndex, inVariant(readVersions.get(), variantIndex));
+
+        CompiledScenario compiled = cache.getIfPresent(key);
+        if (compiled != null) return compiled;
+
+        // Key the entry by the modifications actually compiled, in case one was saved since the versions were read.
+        List<Modification> modifications = inVariant(readModifications.get(), variantIndex);
+        compiled = compile(modifications);
+        cache.put(key(projectId, variantIndex, modifications), compiled);
+        return compiled;
+    }
+
+    /** Convert modifications to R5 modifications and compute their CRC, without caching. */
+    static CompiledScenario compile (List<Modification> modifications) {
+        List<com.conveyal.r5.analyst.scenario.Modification> r5Modifications = modifications.stream()
+                .map(Modification::toR5)
+                .collect(Collectors.toList());
+        CRC32 crc = new CRC32();
+        crc.update(JsonUtilities.objectToJsonBytes(r5Modifications));
+        return new CompiledScenario(r5Modifications, crc.getValue());
+    }
+
+    public static Statistics getStatistics () {
+        return new Statistics();
+    }
+
+    /** A summary of the use of the cache of compiled scenarios, for reporting as JSON. */
+    public static class Statistics {
+        public final long size, hits, misses, evictions;
+        public final double hitRate;
+
+        private Statistics () {
+            CacheStats stats = cache.stats();
+            size = cache.size();
+            hits = stats.hitCount();
+            misses = stats.missCount();
+            evictions = stats.evictionCount();
+            hitRate = stats.hitRate();
+        }
+    }
+
+    /** The order of the modifications is part of the key, as they are applied in that order. */
+    static String key (String projectId, int variantIndex, List<Modification> modifications) {
+        StringBuilder key = new StringBuilder(projectId).append('-').append(variantIndex);
+        for (Modification modification : modifications) {
+            key.append(':').append(modification._id).append('@').append(modification.nonce);
+        }
+        return key.toString();
+    }
+
+    private static List<Modification> inVariant (Collection<Modification> modifications, int variantIndex) {
+        return modifications.stream()
+                .filter(m -> m.variants != null && variantIndex < m.variants.length && m.variants[variantIndex])
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,15 @@
+package com.conveyal.taui.models;
+
+/**
+ * Counts the opportunity datasets that refer to a grid stored on S3 under its content hash. The _id is the hash. The
+ * grid and all its derived formats are deleted from S3 when the last dataset referring to it is deleted.
+ */
+public class GridReference extends Model {
+    public int referenceCount;
+
+    /**
+     * When the grid began to be deleted from S3 after its last reference was released, in milliseconds since the
+     * epoch, or null if it is not being deleted.
+     */
+    public Long deletingSince;
+}
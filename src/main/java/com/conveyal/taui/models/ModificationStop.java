@@ -28,6 +28,17 @@ class ModificationStop {
     public static double SECONDS_PER_HOUR = 60 * 60;
     public static double METERS_PER_KM = 1000;
 
+    // WGS84 ellipsoid: semi-major axis in meters, and first eccentricity squared
+    private static final double SEMI_MAJOR_AXIS_METERS = 6378137;
+    private static final double FLATTENING = 1 / 298.257223563;
+    private static final double ECCENTRICITY_SQUARED = FLATTENING * (2 - FLATTENING);
+
+    /**
+     * Coordinates closer together than this in both latitude and longitude have their distance computed in a local
+     * projection, see distanceMeters. Route geometries drawn in the UI have vertices far closer together than this.
+     */
+    static final double MAX_LOCAL_DEGREES = 0.1;
+
     /** Internal stop spec representation. */
     private final StopSpec stopSpec;
 
@@ -110,13 +121,7 @@ class ModificationStop {
             for (int j = 1; j < coords.length; j++) {
                 Coordinate c0 = coords[j - 1];
                 Coordinate c1 = coords[j];
-                double lineSegmentMeters;
-                try {
-                    // JTS orthodromic distance returns meters, considering the input coordinate system.
-                    lineSegmentMeters = JTS.orthodromicDistance(c0, c1, crs);
-                } catch (TransformException e) {
-                    throw AnalysisServerException.unknown(ExceptionUtils.asString(e));
-                }
+                double lineSegmentMeters = distanceMeters(c0, c1);
                 double metersAtEndOfSegment = metersFromPatternStart + lineSegmentMeters;
 
                 if (autoCreateStops) {
@@ -207,6 +212,40 @@ class ModificationStop {
         return new ArrayList<>(stops);
     }
 
+    /**
+     * The distance in meters between two WGS84 coordinates. Neighboring vertices of a route are close together, so
+     * rather than solving for the geodesic (by far the slowest part of converting a long route) their distance is
+     * measured in a projection onto the plane tangent to the ellipsoid at their mean latitude, scaled by the radii of
+     * curvature along the meridian and the parallel there. Within MAX_LOCAL_DEGREES of each other this is within 1e-5
+     * of the distance along the geodesic computed by GeoTools (in practice within 1e-6), and further apart we fall back
+     * on GeoTools.
+     */
+    static double distanceMeters (Coordinate c0, Coordinate c1) {
+        double dLon = c1.x - c0.x;
+        double dLat = c1.y - c0.y;
+        if (Math.abs(dLon) > MAX_LOCAL_DEGREES || Math.abs(dLat) > MAX_LOCAL_DEGREES) {
+            return orthodromicDistanceMeters(c0, c1);
+        }
+        double meanLat = Math.toRadians((c0.y + c1.y) / 2);
+        double sinLat = Math.sin(meanLat);
+        double w = 1 - ECCENTRICITY_SQUARED * sinLat * sinLat;
+        double primeVerticalRadius = SEMI_MAJOR_AXIS_METERS / Math.sqrt(w);
+        double meridionalRadius = primeVerticalRadius * (1 - ECCENTRICITY_SQUARED) / w;
+        double dx = Math.toRadians(dLon) * primeVerticalRadius * Math.cos(meanLat);
+        double dy = Math.toRadians(dLat) * meridionalRadius;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /** The distance in meters between two WGS84 coordinates along the geodesic, as computed by GeoTools. */
+    static double orthodromicDistanceMeters (Coordinate c0, Coordinate c1) {
+        try {
+            // JTS orthodromic distance returns meters, considering the input coordinate system.
+            return JTS.orthodromicDistance(c0, c1, crs);
+        } catch (TransformException e) {
+            throw AnalysisServerException.unknown(ExceptionUtils.asString(e));
+        }
+    }
+
     /**
      * Convert a list of ModificationStops (which are internal to the backend conversion process) to a list of the
      * StopSpec type required by r5.
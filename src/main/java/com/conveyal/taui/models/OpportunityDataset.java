@@ -1,6 +1,7 @@
 package com.conveyal.taui.models;
 
 import com.conveyal.taui.grids.GridExporter;
+import com.conveyal.taui.grids.GridStore;
 
 public class OpportunityDataset extends Model {
     /** The human-readable name of the data source from which this came */
@@ -26,8 +27,15 @@ public class OpportunityDataset extends Model {
     @Deprecated
     public String key;
 
+    /**
+     * The SHA-256 hash of the grid in the Conveyal binary format, under which it is stored on S3 and shared with any
+     * other datasets containing the same grid. Null for datasets created before grids were content addressed.
+     */
+    public String contentHash;
+
     /** The key on S3. */
     public String getKey (GridExporter.Format format) {
+        if (contentHash != null) return GridStore.getKey(contentHash, format);
         return String.format("%s/%s.%s", this.regionId, this.key == null ? this._id : this.key, format.toString().toLowerCase());
     }
 
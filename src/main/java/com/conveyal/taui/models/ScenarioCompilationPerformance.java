@@ -0,0 +1,107 @@
+package com.conveyal.taui.models;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compare converting and hashing the modifications of a scenario for every single point request with looking up the
+ * compiled scenario through CompiledScenario.forVariant, as AnalysisRequest.populateTask does. This is not an
+ * automated unit test, it's a manually run performance indicator. It does not read from the database: the cached time
+ * includes picking out the modifications in the variant and building the cache key, but not the query for their
+ * nonces. Half of the project's modifications are in another variant.
+ *
+ * Arguments (all optional): number of add trip pattern modifications, segments per modification, timetables per
+ * modification, number of requests to time.
+ */
+public class ScenarioCompilationPerformance {
+
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    public static void main (String[] args) {
+        int nModifications = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int nSegments = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int nTimetables = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int nRequests = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        System.out.println(String.format("Compiling %d modifications of %d segments and %d timetables, %d times.",
+                nModifications, nSegments, nTimetables, nRequests));
+
+        List<Modification> project = randomModifications(nModifications * 2, nSegments, nTimetables);
+        List<Modification> modifications = new ArrayList<>();
+        for (int m = 0; m < project.size(); m++) {
+            Modification modification = project.get(m);
+            modification.variants = new boolean[] { m % 2 == 0, m % 2 == 1 };
+            if (m % 2 == 0) modifications.add(modification);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            long start = System.currentTimeMillis();
+            long crc = 0;
+            for (int r = 0; r < nRequests; r++) {
+                crc = CompiledScenario.compile(modifications).crc;
+            }
+            long uncachedTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            long cachedCrc = 0;
+            for (int r = 0; r < nRequests; r++) {
+                cachedCrc = CompiledScenario.forVariant("project", 0, () -> project, () -> project).crc;
+            }
+            long cachedTime = System.currentTimeMillis() - start;
+
+            System.out.println(String.format("uncached %.3f ms, cached %.3f ms per request (CRCs %s)",
+                    (double) uncachedTime / nRequests, (double) cachedTime / nRequests,
+                    crc == cachedCrc ? "match" : "DIFFER"));
+        }
+    }
+
+    /** Trip patterns wandering from a random start point, with stops every 400 meters. */
+    private static List<Modification> randomModifications (int nModifications, int nSegments, int nTimetables) {
+        Random random = new Random(42);
+        List<Modification> modifications = new ArrayList<>();
+        for (int m = 0; m < nModifications; m++) {
+            AddTripPattern tripPattern = new AddTripPattern();
+            tripPattern._id = "modification-" + m;
+            tripPattern.nonce = "nonce-" + m;
+            tripPattern.name = "Route " + m;
+            tripPattern.segments = new ArrayList<>();
+
+            Coordinate from = new Coordinate(-77 + random.nextDouble() * 0.2, 38.8 + random.nextDouble() * 0.2);
+            for (int s = 0; s < nSegments; s++) {
+                Coordinate[] coordinates = new Coordinate[10];
+                coordinates[0] = from;
+                for (int c = 1; c < coordinates.length; c++) {
+                    Coordinate previous = coordinates[c - 1];
+                    coordinates[c] = new Coordinate(previous.x + (random.nextDouble() - 0.3) * 0.002,
+                            previous.y + (random.nextDouble() - 0.3) * 0.002);
+                }
+                Segment segment = new Segment();
+                segment.geometry = geometryFactory.createLineString(coordinates);
+                segment.stopAtStart = s == 0;
+                segment.stopAtEnd = true;
+                segment.spacing = 400;
+                tripPattern.segments.add(segment);
+                from = coordinates[coordinates.length - 1];
+            }
+
+            tripPattern.timetables = new ArrayList<>();
+            for (int t = 0; t < nTimetables; t++) {
+                AddTripPattern.Timetable timetable = new AddTripPattern.Timetable();
+                timetable.name = "Timetable " + t;
+                timetable.startTime = 6 * 60 * 60 + t * 60 * 60;
+                timetable.endTime = timetable.startTime + 60 * 60;
+                timetable.headwaySecs = 600;
+                timetable.monday = timetable.tuesday = timetable.wednesday = true;
+                timetable.dwellTime = 30;
+                timetable.segmentSpeeds = new int[nSegments];
+                for (int s = 0; s < nSegments; s++) timetable.segmentSpeeds[s] = 15 + random.nextInt(20);
+                tripPattern.timetables.add(timetable);
+            }
+            modifications.add(tripPattern);
+        }
+        return modifications;
+    }
+}
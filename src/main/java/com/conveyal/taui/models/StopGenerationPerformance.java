@@ -0,0 +1,80 @@
+package com.conveyal.taui.models;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compare the local distance approximation used to place stops along new trip patterns with the GeoTools geodesic
+ * distance it replaced, and time generating the stops of a long route. This is not an automated unit test, it's a
+ * manually run performance indicator. The accuracy of the approximation is checked by ModificationStopTest.
+ *
+ * Arguments (all optional): number of vertices in the route, number of repetitions.
+ */
+public class StopGenerationPerformance {
+
+    public static void main (String[] args) {
+        int nVertices = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int nRepetitions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        System.out.println(String.format("Measuring a route of %d vertices, %d times.", nVertices, nRepetitions));
+
+        Coordinate[] coordinates = randomRoute(nVertices);
+        List<Segment> segments = new ArrayList<>();
+        Segment segment = new Segment();
+        segment.geometry = new GeometryFactory().createLineString(coordinates);
+        segment.stopAtStart = true;
+        segment.stopAtEnd = true;
+        segment.spacing = 400;
+        segments.add(segment);
+
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            double geoToolsMeters = 0;
+            for (int r = 0; r < nRepetitions; r++) {
+                geoToolsMeters = 0;
+                for (int v = 1; v < nVertices; v++) {
+                    geoToolsMeters += ModificationStop.orthodromicDistanceMeters(coordinates[v - 1], coordinates[v]);
+                }
+            }
+            long geoToolsTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double localMeters = 0;
+            for (int r = 0; r < nRepetitions; r++) {
+                localMeters = 0;
+                for (int v = 1; v < nVertices; v++) {
+                    localMeters += ModificationStop.distanceMeters(coordinates[v - 1], coordinates[v]);
+                }
+            }
+            long localTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int nStops = 0;
+            for (int r = 0; r < nRepetitions; r++) {
+                nStops = ModificationStop.getStopsFromSegments(segments, null, 30, new int[] {25}).size();
+            }
+            long stopsTime = System.nanoTime() - start;
+
+            System.out.println(String.format("GeoTools %.1f ns, local %.1f ns per distance; route length differs by " +
+                            "%.3f m of %.0f m; generating %d stops takes %.3f ms",
+                    (double) geoToolsTime / nRepetitions / nVertices, (double) localTime / nRepetitions / nVertices,
+                    Math.abs(geoToolsMeters - localMeters), geoToolsMeters, nStops,
+                    stopsTime / 1e6 / nRepetitions));
+        }
+    }
+
+    /** A route wandering northeast from Washington DC, with vertices tens of meters apart. */
+    private static Coordinate[] randomRoute (int nVertices) {
+        Random random = new Random(42);
+        Coordinate[] coordinates = new Coordinate[nVertices];
+        coordinates[0] = new Coordinate(-77.03, 38.9);
+        for (int v = 1; v < nVertices; v++) {
+            coordinates[v] = new Coordinate(coordinates[v - 1].x + (random.nextDouble() - 0.3) * 0.0005,
+                    coordinates[v - 1].y + (random.nextDouble() - 0.3) * 0.0005);
+        }
+        return coordinates;
+    }
+}
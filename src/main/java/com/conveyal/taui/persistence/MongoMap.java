@@ -2,10 +2,18 @@ package com.conveyal.taui.persistence;
 
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.taui.AnalysisServerException;
+import com.conveyal.taui.models.JsonViews;
 import com.conveyal.taui.models.Model;
+import com.conveyal.taui.util.JsonUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.QueryBuilder;
+import com.mongodb.util.JSON;
 import org.bson.types.ObjectId;
 import org.mongojack.DBCursor;
 import org.mongojack.DBSort;
@@ -17,10 +25,11 @@ import spark.Request;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An attempt at simulating a MapDB-style interface, for storing Java objects in MongoDB.
@@ -30,12 +39,61 @@ import java.util.Set;
 public class MongoMap<V extends Model> {
     private static Logger LOG = LoggerFactory.getLogger(MongoMap.class);
 
+    /**
+     * Values are always changed through this map within this process, which drops them from the cache. In case the
+     * database is changed by some other means, a cached value older than this is only used after checking its nonce.
+     */
+    private static final long NONCE_CHECK_INTERVAL_MSEC = 10_000;
+
+    /** Cached values that have not been used for this long are dropped. */
+    private static final int CACHE_EXPIRY_MINUTES = 10;
+
+    /** Copies values in and out of the cache, so that callers modifying the values they get do not modify the cache. */
+    private static final ObjectMapper cacheMapper = JsonUtil.getObjectMapper(JsonViews.Db.class);
+
+    /** The query parameter giving the number of values on each page of a list. */
+    public static final String LIMIT_PARAM = "limit";
+
+    /** The query parameter giving the ID of the last value on the previous page of a list. */
+    public static final String AFTER_PARAM = "after";
+
+    /** Pages are sorted newest first, on the fields of the indexes created in Persistence. */
+    private static final DBObject PAGE_ORDER = DBSort.desc("createdAt").desc("_id");
+
     private JacksonDBCollection<V, String> wrappedCollection;
     private Class<V> type;
 
+    /**
+     * Values recently fetched by ID, serialized so that they can't be modified, or null if caching is disabled for
+     * this collection.
+     */
+    private final Cache<String, CachedValue> cache;
+
+    /**
+     * Counts the writes made through this map, so that a value read from the database while it was being changed is
+     * not cached after the change has invalidated the entry for it.
+     */
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final AtomicLong staleCount = new AtomicLong();
+
     public MongoMap (JacksonDBCollection<V, String> wrappedCollection, Class<V> type) {
+        this(wrappedCollection, type, 0);
+    }
+
+    /**
+     * @param cacheSize the maximum number of values to cache by ID, or 0 to always read from the database.
+     */
+    public MongoMap (JacksonDBCollection<V, String> wrappedCollection, Class<V> type, int cacheSize) {
         this.type = type;
         this.wrappedCollection = wrappedCollection;
+        this.cache = cacheSize > 0
+                ? CacheBuilder.newBuilder()
+                    .maximumSize(cacheSize)
+                    .expireAfterAccess(CACHE_EXPIRY_MINUTES, TimeUnit.MINUTES)
+                    .recordStats()
+                    .build()
+                : null;
     }
 
     public int size() {
@@ -47,7 +105,7 @@ public class MongoMap<V extends Model> {
     }
 
     public V findByIdIfPermitted(String id, String accessGroup) {
-        V result = wrappedCollection.findOneById(id);
+        V result = get(id);
 
         if (result == null) {
             throw AnalysisServerException.notFound("The data you requested could not be found.");
@@ -58,12 +116,70 @@ public class MongoMap<V extends Model> {
         }
     }
 
+    /**
+     * Get a value by ID. If caching is enabled for this collection, a value cached within the last few seconds is
+     * returned without contacting the database. An older cached value is returned if its nonce is still the one in
+     * the database, which means reading only the nonce rather than the whole value.
+     */
     public V get(String key) {
-        return wrappedCollection.findOneById(key);
+        if (cache == null || key == null) return wrappedCollection.findOneById(key);
+
+        CachedValue cached = cache.getIfPresent(key);
+        if (cached != null) {
+            long now = System.currentTimeMillis();
+            if (now - cached.validatedAt < NONCE_CHECK_INTERVAL_MSEC) return cached.toValue();
+
+            V current = wrappedCollection.findOneById(key, new BasicDBObject("nonce", 1));
+            if (current != null && cached.nonce != null && cached.nonce.equals(current.nonce)) {
+                cached.validatedAt = now;
+                return cached.toValue();
+            }
+            staleCount.incrementAndGet();
+            invalidate(key);
+        }
+
+        long writesBeforeRead = writeCount.get();
+        V value = wrappedCollection.findOneById(key);
+        if (value != null && writeCount.get() == writesBeforeRead) cache(value);
+        return value;
+    }
+
+    /** @return the hit rate and other statistics of the cache of values by ID, or null if caching is disabled. */
+    public CacheStats getCacheStats () {
+        return cache == null ? null : cache.stats();
+    }
+
+    /** @return the number of values currently cached. */
+    public long getCacheSize () {
+        return cache == null ? 0 : cache.size();
     }
 
-    public Collection<V> findAllForRequest(Request req) {
-        return find(QueryBuilder.start("accessGroup").is(req.attribute("accessGroup")).get()).toArray();
+    /** @return the number of cached values found to be out of date by checking their nonces. */
+    public long getCacheStaleCount () {
+        return staleCount.get();
+    }
+
+    /**
+     * Fetch many values by ID in a single query.
+     *
+     * @param project the fields to return, or null for all of them
+     * @return the values that were found, by ID. IDs with no value are absent.
+     */
+    public Map<String, V> findByIds (Collection<String> ids, DBObject project) {
+        Map<String, V> valuesById = new HashMap<>();
+        if (ids.isEmpty()) return valuesById;
+        DBObject query = QueryBuilder.start("_id").in(ids).get();
+        DBCursor<V> cursor = project == null ? wrappedCollection.find(query) : wrappedCollection.find(query, project);
+        try {
+            for (V value : cursor) valuesById.put(value._id, value);
+        } finally {
+            cursor.close();
+        }
+        return valuesById;
+    }
+
+    public DBCursor<V> findAllForRequest(Request req) {
+        return findPermittedPage(new BasicDBObject(), null, req);
     }
 
     public Collection<V> findPermitted(DBObject query, String accessGroup) {
@@ -80,13 +196,144 @@ public class MongoMap<V extends Model> {
         ).get(), project).toArray();
     }
 
-    public Collection<V> findPermittedForQuery (Request req) {
+    /**
+     * Ask the database how it would run findPermitted or findPermittedPage with the given query, for checking that
+     * the query is served by an index.
+     *
+     * @return the explain output of the query
+     */
+    public DBObject explainPermitted (DBObject query, String accessGroup) {
+        return find(QueryBuilder.start().and(
+                query,
+                QueryBuilder.start("accessGroup").is(accessGroup).get()
+        ).get()).sort(DBSort.desc("createdAt").desc("_id")).explain();
+    }
+
+    /** @return whether the winning plan in the output of explainPermitted reads the whole collection. */
+    public static boolean isCollectionScan (DBObject explanation) {
+        DBObject queryPlanner = (DBObject) explanation.get("queryPlanner");
+        return queryPlanner != null && containsStage(queryPlanner.get("winningPlan"), "COLLSCAN");
+    }
+
+    private static boolean containsStage (Object plan, String stage) {
+        if (plan instanceof List) {
+            for (Object child : (List) plan) if (containsStage(child, stage)) return true;
+        } else if (plan instanceof DBObject) {
+            DBObject planObject = (DBObject) plan;
+            if (stage.equals(planObject.get("stage"))) return true;
+            for (String key : planObject.keySet()) {
+                if (containsStage(planObject.get(key), stage)) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Create an index with the given keys if it does not already exist. */
+    public void ensureIndex (DBObject keys) {
+        wrappedCollection.createIndex(keys);
+    }
+
+    /**
+     * Find the values in the request's access group whose fields equal the request's query parameters, apart from
+     * the pagination parameters, one page at a time as described in findPermittedPage.
+     */
+    public DBCursor<V> findPermittedForQuery (Request req) {
+        return findPermittedPage(queryFromParams(req), null, req);
+    }
+
+    /**
+     * The query matching the request's query parameters, apart from the pagination parameters, as used by
+     * findPermittedForQuery.
+     */
+    public static DBObject queryFromParams (Request req) {
         QueryBuilder query = QueryBuilder.start();
         req.queryParams().forEach(name -> {
+            if (LIMIT_PARAM.equals(name) || AFTER_PARAM.equals(name)) return;
             query.and(name).is(req.queryParams(name));
         });
+        return query.get();
+    }
 
-        return findPermitted(query.get(), req.attribute("accessGroup"));
+    /**
+     * Find one page of the values matching a query in the request's access group, newest first. The page holds at
+     * most the number of values in the request's limit parameter, or all of them if there is none. The next page is
+     * requested by setting the after parameter to the ID of the last value on this page. A page shorter than the
+     * limit is the last. Paging on createdAt and _id rather than skipping a count of values means each page is a
+     * range of the index, and values created while paging do not shift the pages.
+     *
+     * @param project the fields to return, or null for all of them
+     * @return a cursor over the page, to be closed by the caller
+     */
+    public DBCursor<V> findPermittedPage (DBObject query, DBObject project, Request req) {
+        DBObject pageQuery = pageQuery(query, req);
+        DBCursor<V> cursor = (project == null ? wrappedCollection.find(pageQuery)
+                : wrappedCollection.find(pageQuery, project))
+                .sort(PAGE_ORDER);
+        int pageSize = pageSize(req);
+        if (pageSize > 0) cursor.limit(pageSize);
+        return cursor;
+    }
+
+    /**
+     * Describe the version of the page of values that findPermittedPage would return, reading only their IDs, nonces
+     * and update times, and any other given fields that are changed without updating the nonce. Creating, deleting or
+     * saving a value on the page changes its version, so a client can be told its copy of the page is still current
+     * without reading or serializing the values themselves. The documents are read as they are stored, without
+     * deserializing them to models.
+     */
+    public String pageVersion (DBObject query, Request req, String... fields) {
+        BasicDBObject project = new BasicDBObject("nonce", 1).append("updatedAt", 1);
+        for (String field : fields) project.append(field, 1);
+        com.mongodb.DBCursor cursor = wrappedCollection.getDbCollection()
+                .find(pageQuery(query, req), project)
+                .sort(PAGE_ORDER)
+                .limit(pageSize(req));
+        StringBuilder version = new StringBuilder();
+        try {
+            while (cursor.hasNext()) version.append(JSON.serialize(cursor.next())).append('\n');
+        } finally {
+            cursor.close();
+        }
+        return version.toString();
+    }
+
+    /** Describe the version of a single value by its ID, nonce and update time, see pageVersion. */
+    public static String version (Model value) {
+        return String.format("%s:%s:%s", value._id, value.nonce,
+                value.updatedAt == null ? 0 : value.updatedAt.getTime());
+    }
+
+    /** The query for a page of findPermittedPage, restricted to the request's access group. */
+    private DBObject pageQuery (DBObject query, Request req) {
+        QueryBuilder pageQuery = QueryBuilder.start().and(
+                query,
+                QueryBuilder.start("accessGroup").is(req.attribute("accessGroup")).get()
+        );
+
+        String after = req.queryParams(AFTER_PARAM);
+        if (after != null) {
+            V last = wrappedCollection.findOneById(after, new BasicDBObject("createdAt", 1));
+            if (last == null) throw AnalysisServerException.badRequest("No value with ID " + after + " to page after.");
+            pageQuery.or(
+                    QueryBuilder.start("createdAt").lessThan(last.createdAt).get(),
+                    QueryBuilder.start("createdAt").is(last.createdAt).and("_id").lessThan(after).get()
+            );
+        }
+        return pageQuery.get();
+    }
+
+    /** @return the number of values on a page, or 0 if the request has no limit */
+    private static int pageSize (Request req) {
+        String limit = req.queryParams(LIMIT_PARAM);
+        if (limit == null) return 0;
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            pageSize = 0;
+        }
+        if (pageSize <= 0) throw AnalysisServerException.badRequest("The limit must be a positive whole number.");
+        return pageSize;
     }
 
     /**
@@ -130,10 +377,42 @@ public class MongoMap<V extends Model> {
 
         // Insert into the DB
         wrappedCollection.insert(value);
+        invalidate(value._id);
 
         return value;
     }
 
+    /**
+     * Create many values at once, setting the same fields as create() on each and inserting them all into the
+     * database in a single round trip.
+     */
+    public List<V> createAll(List<V> values) {
+        return createAll(values, null);
+    }
+
+    /**
+     * Create many values at once, inserting them all into the database in a single round trip. Values that already
+     * have an ID keep it, so that a caller can assign IDs in advance and make the values refer to one another before
+     * they are inserted. Each value gets a new nonce, and is created and updated now.
+     *
+     * @param updatedBy who is creating the values, or null if that is the creator recorded on each value
+     */
+    public List<V> createAll(List<V> values, String updatedBy) {
+        if (values.isEmpty()) return values;
+
+        for (V value : values) {
+            if (value._id == null) value._id = new ObjectId().toString();
+            value.updateLock();
+            value.createdAt = value.updatedAt;
+            value.updatedBy = updatedBy == null ? value.createdBy : updatedBy;
+        }
+
+        wrappedCollection.insert(values);
+        for (V value : values) invalidate(value._id);
+
+        return values;
+    }
+
     public V updateFromJSONRequest(Request request) throws IOException {
         V json = JsonUtilities.objectMapper.readValue(request.body(), this.type);
         // Add the additional check for the same access group
@@ -178,7 +457,13 @@ public class MongoMap<V extends Model> {
         BasicDBObject dbObject = JsonUtilities.objectMapper.convertValue(value, BasicDBObject.class);
 
         // Update
-        V result = wrappedCollection.findAndModify(query.get(), null, null, false, dbObject, true, false);
+        invalidate(value._id);
+        V result;
+        try {
+            result = wrappedCollection.findAndModify(query.get(), null, null, false, dbObject, true, false);
+        } finally {
+            invalidate(value._id);
+        }
 
         // If it doesn't result in an update, probably throw an error
         if (result == null) {
@@ -204,16 +489,27 @@ public class MongoMap<V extends Model> {
      * @return
      */
     public V modifiyWithoutUpdatingLock (V value) {
-        wrappedCollection.updateById(value._id, value);
+        invalidate(value._id);
+        try {
+            wrappedCollection.updateById(value._id, value);
+        } finally {
+            invalidate(value._id);
+        }
 
         return value;
     }
 
     public V removeIfPermitted(String key, String accessGroup) {
-        V result = wrappedCollection.findAndRemove(QueryBuilder.start().and(
-                QueryBuilder.start("_id").is(key).get(),
-                QueryBuilder.start("accessGroup").is(accessGroup).get()
-        ).get());
+        invalidate(key);
+        V result;
+        try {
+            result = wrappedCollection.findAndRemove(QueryBuilder.start().and(
+                    QueryBuilder.start("_id").is(key).get(),
+                    QueryBuilder.start("accessGroup").is(accessGroup).get()
+            ).get());
+        } finally {
+            invalidate(key);
+        }
 
         if (result == null) {
             throw AnalysisServerException.notFound("The data you attempted to remove could not be found.");
@@ -222,8 +518,62 @@ public class MongoMap<V extends Model> {
         return result;
     }
 
+    /**
+     * Atomically add the given amount to a numeric field, creating the object with just that field if it does not yet
+     * exist. This does not check or update the nonce, so it is only for fields that are never edited by clients.
+     *
+     * @return the object after it was updated
+     */
+    public V increment(String key, String field, int amount) {
+        invalidate(key);
+        try {
+            return wrappedCollection.findAndModify(
+                    QueryBuilder.start("_id").is(key).get(),
+                    null,
+                    null,
+                    false,
+                    new BasicDBObject("$inc", new BasicDBObject(field, amount)),
+                    true,
+                    true
+            );
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * Atomically apply the given update operators to the object matching the given query, if there is one. Like
+     * increment, this does not check or update the nonce.
+     *
+     * @return the object after it was updated, or null if none matched
+     */
+    public V modifyWhere(DBObject query, DBObject update) {
+        countWrite();
+        V result = wrappedCollection.findAndModify(query, null, null, false, update, true, false);
+        if (result != null) invalidate(result._id);
+        return result;
+    }
+
+    /**
+     * Atomically remove the object matching the given query, if there is one.
+     *
+     * @return the object that was removed, or null if none matched
+     */
+    public V removeWhere(DBObject query) {
+        countWrite();
+        V result = wrappedCollection.findAndRemove(query);
+        if (result != null) invalidate(result._id);
+        return result;
+    }
+
     public V remove(String key) {
-        WriteResult<V, String> result = wrappedCollection.removeById(key);
+        invalidate(key);
+        WriteResult<V, String> result;
+        try {
+            result = wrappedCollection.removeById(key);
+        } finally {
+            invalidate(key);
+        }
         LOG.info(result.toString());
         if (result.getN() == 0) {
             throw AnalysisServerException.notFound(String.format("The data for _id %s does not exist", key));
@@ -232,17 +582,54 @@ public class MongoMap<V extends Model> {
         return null;
     }
 
-    public Collection<V> values() {
-        Iterator<V> it = wrappedCollection.find().iterator();
+    /**
+     * Drop the cached value with the given ID and count a write. This is called both before a value is changed in
+     * the database and after the change is complete. Counting the write stops a get that read the old value in the
+     * meantime from caching it, and if that get has already cached it by the time the change is complete, the second
+     * call drops it again.
+     */
+    private void invalidate (String key) {
+        if (cache == null) return;
+        writeCount.incrementAndGet();
+        cache.invalidate(key);
+    }
 
-        Set<V> ret = new HashSet<>();
+    /**
+     * Count a write before changing values that are found by query, whose IDs are not known until the change is
+     * complete. The values changed must then be invalidated.
+     */
+    private void countWrite () {
+        if (cache == null) return;
+        writeCount.incrementAndGet();
+    }
 
-        while (it.hasNext()) {
-            ret.add(it.next());
+    private void cache (V value) {
+        try {
+            cache.put(value._id, new CachedValue(value.nonce, cacheMapper.writeValueAsBytes(value)));
+        } catch (JsonProcessingException e) {
+            LOG.warn("Unable to cache {}", value, e);
         }
-
-        // TODO cheating. Technically changes here are supposed to be reflected in the map
-        return Collections.unmodifiableSet(ret);
     }
 
+    /** A value serialized along with its nonce, which identifies the version of the value that was cached. */
+    private class CachedValue {
+        final String nonce;
+        final byte[] json;
+
+        /** When the value was last read from or checked against the database. */
+        volatile long validatedAt = System.currentTimeMillis();
+
+        CachedValue (String nonce, byte[] json) {
+            this.nonce = nonce;
+            this.json = json;
+        }
+
+        V toValue () {
+            try {
+                return cacheMapper.readValue(json, type);
+            } catch (IOException e) {
+                throw AnalysisServerException.unknown(e);
+            }
+        }
+    }
 }
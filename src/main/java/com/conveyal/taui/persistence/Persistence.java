@@ -5,6 +5,7 @@ import com.conveyal.taui.models.Bookmark;
 import com.conveyal.taui.models.Bundle;
 import com.conveyal.taui.models.JsonViews;
 import com.conveyal.taui.models.AggregationArea;
+import com.conveyal.taui.models.GridReference;
 import com.conveyal.taui.models.Model;
 import com.conveyal.taui.models.Modification;
 import com.conveyal.taui.models.OpportunityDataset;
@@ -13,8 +14,11 @@ import com.conveyal.taui.models.Region;
 import com.conveyal.taui.models.RegionalAnalysis;
 import com.conveyal.taui.util.JsonUtil;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheStats;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
@@ -22,12 +26,22 @@ import org.mongojack.JacksonDBCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
 /**
  * Manages a single connection to MongoDB for the entire TAUI server process.
  */
 public class Persistence {
     private static final Logger LOG = LoggerFactory.getLogger(Persistence.class);
 
+    /**
+     * The number of values cached by ID for the collections that are looked up on every single point request or
+     * analysis. These values are small, apart from regions, which are few.
+     */
+    private static final int CACHE_SIZE = 1000;
+
     private static MongoClient mongo;
     private static DB db;
 
@@ -39,6 +53,9 @@ public class Persistence {
     public static MongoMap<Bookmark> bookmarks;
     public static MongoMap<AggregationArea> aggregationAreas;
     public static MongoMap<OpportunityDataset> opportunityDatasets;
+    public static MongoMap<GridReference> gridReferences;
+
+    private static final Map<String, MongoMap> cachedTables = new HashMap<>();
 
     public static void initialize () {
         LOG.info("Connecting to MongoDB...");
@@ -51,22 +68,81 @@ public class Persistence {
         }
         // TODO Find another solution - MongoClient is deprecated but needed for MongoJack.
         db = mongo.getDB(AnalysisServerConfig.databaseName);
-        modifications = getTable("modifications", Modification.class);
-        projects = getTable("projects", Project.class);
-        bundles = getTable("bundles", Bundle.class);
-        regions = getTable("regions", Region.class);
-        regionalAnalyses = getTable("regional-analyses", RegionalAnalysis.class);
-        bookmarks = getTable("bookmarks", Bookmark.class);
-        aggregationAreas = getTable("aggregationAreas", AggregationArea.class);
-        opportunityDatasets = getTable("opportunityDatasets", OpportunityDataset.class);
+        // Nearly every query filters on the access group along with the field shown in the UI, and sorts on createdAt.
+        modifications = getTable("modifications", Modification.class, 0,
+                sortedIndex("projectId", "accessGroup"));
+        projects = getTable("projects", Project.class, CACHE_SIZE,
+                sortedIndex("regionId", "accessGroup"),
+                sortedIndex("accessGroup"));
+        bundles = getTable("bundles", Bundle.class, CACHE_SIZE,
+                sortedIndex("regionId", "accessGroup"),
+                sortedIndex("accessGroup"),
+                sortedIndex("feeds.sha256"));
+        regions = getTable("regions", Region.class, CACHE_SIZE,
+                sortedIndex("accessGroup"));
+        regionalAnalyses = getTable("regional-analyses", RegionalAnalysis.class, 0,
+                sortedIndex("regionId", "accessGroup"));
+        bookmarks = getTable("bookmarks", Bookmark.class, 0,
+                sortedIndex("regionId", "accessGroup"));
+        aggregationAreas = getTable("aggregationAreas", AggregationArea.class, 0,
+                sortedIndex("regionId", "accessGroup"));
+        opportunityDatasets = getTable("opportunityDatasets", OpportunityDataset.class, CACHE_SIZE,
+                sortedIndex("regionId", "accessGroup"),
+                sortedIndex("sourceId", "accessGroup"));
+        gridReferences = getTable("gridReferences", GridReference.class, 0);
     }
 
-    /** Connect to a Mongo table using MongoJack, which persists Java objects into Mongo. */
-    private static <V extends Model> MongoMap<V> getTable (String name, Class clazz) {
+    /**
+     * Connect to a Mongo table using MongoJack, which persists Java objects into Mongo.
+     *
+     * @param cacheSize how many values fetched by ID to cache, or 0 for none
+     * @param indexes the keys of the indexes the table should have, which are created if they do not exist
+     */
+    private static <V extends Model> MongoMap<V> getTable (String name, Class clazz, int cacheSize,
+                                                           DBObject... indexes) {
         DBCollection collection = db.getCollection(name);
         ObjectMapper om = JsonUtil.getObjectMapper(JsonViews.Db.class, true);
         JacksonDBCollection<V, String> coll = JacksonDBCollection.wrap(collection, clazz, String.class, om);
-        return new MongoMap<>(coll, clazz);
+        MongoMap<V> map = new MongoMap<>(coll, clazz, cacheSize);
+        for (DBObject keys : indexes) {
+            LOG.info("Ensuring index {} on {}", keys, name);
+            map.ensureIndex(keys);
+        }
+        if (cacheSize > 0) cachedTables.put(name, map);
+        return map;
+    }
+
+    /**
+     * @return the keys of an index on the given fields, followed by the fields that MongoMap sorts and pages on, so
+     * that a query on the fields returns its results in order straight from the index.
+     */
+    private static DBObject sortedIndex (String... fields) {
+        BasicDBObject keys = new BasicDBObject();
+        for (String field : fields) keys.append(field, 1);
+        return keys.append("createdAt", -1).append("_id", -1);
+    }
+
+    /** @return the statistics of the cache of each collection that has one, by collection name. */
+    public static Map<String, CacheStatistics> getCacheStatistics () {
+        Map<String, CacheStatistics> statistics = new TreeMap<>();
+        cachedTables.forEach((name, map) -> statistics.put(name, new CacheStatistics(map)));
+        return statistics;
+    }
+
+    /** A summary of the use of the cache of one collection, for reporting as JSON. */
+    public static class CacheStatistics {
+        public final long size, hits, misses, stale, evictions;
+        public final double hitRate;
+
+        CacheStatistics (MongoMap map) {
+            CacheStats stats = map.getCacheStats();
+            size = map.getCacheSize();
+            hits = stats.hitCount();
+            misses = stats.missCount();
+            stale = map.getCacheStaleCount();
+            evictions = stats.evictionCount();
+            hitRate = stats.hitRate();
+        }
     }
 
 }
@@ -0,0 +1,55 @@
+package com.conveyal.taui.util;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Loads values by key for the duration of one request, in the style of the DataLoader used with GraphQL. Code that
+ * can see which keys will be needed enqueues them all at once, so that they are loaded in parallel rather than one
+ * after another as each is asked for, and each key is loaded at most once however many times it is asked for.
+ * A loader should not outlive its request, so that it never returns out of date values.
+ */
+public class BatchLoader<K, V> {
+
+    private final Function<K, V> load;
+
+    private final Executor executor;
+
+    private final Map<K, CompletableFuture<V>> values = new ConcurrentHashMap<>();
+
+    /**
+     * @param load loads a single value, which will be called on the executor for many keys at once
+     */
+    public BatchLoader (Function<K, V> load, Executor executor) {
+        this.load = load;
+        this.executor = executor;
+    }
+
+    /** Start loading all the given keys that have not already been loaded or started. */
+    public void enqueue (Collection<K> keys) {
+        for (K key : keys) future(key);
+    }
+
+    /**
+     * Wait for the value for the given key, loading it now if it was not enqueued.
+     *
+     * @throws RuntimeException whatever exception loading the value threw, unwrapped
+     */
+    public V get (K key) {
+        try {
+            return future(key).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<V> future (K key) {
+        return values.computeIfAbsent(key, k -> CompletableFuture.supplyAsync(() -> load.apply(k), executor));
+    }
+}
@@ -8,7 +8,9 @@ public class HttpStatus {
     public static final int OK_200 = 200;
     public static final int ACCEPTED_202 = 202;
     public static final int NO_CONTENT_204 = 204;
+    public static final int NOT_MODIFIED_304 = 304;
     public static final int BAD_REQUEST_400 = 400;
+    public static final int NOT_FOUND_404 = 404;
     public static final int SERVER_ERROR_500 = 500;
     public static final int SERVICE_UNAVAILABLE = 000;
 }
@@ -1,8 +1,13 @@
 package com.conveyal.taui.util;
 
+import com.google.common.hash.Hashing;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import spark.Request;
+import spark.Response;
+
+import java.nio.charset.StandardCharsets;
 
 /**
  * Created by matthewc on 2/15/17.
@@ -19,4 +24,39 @@ public class HttpUtil {
             .setDefaultRequestConfig(requestConfig)
             .build();
 
+    /** @return a strong ETag, quoted as it appears in headers, identifying the version described by the given string. */
+    public static String etag (String version) {
+        return "\"" + Hashing.murmur3_128().hashString(version, StandardCharsets.UTF_8).toString() + "\"";
+    }
+
+    /**
+     * @return a weak ETag identifying the version described by the given string, for responses that are equivalent
+     * but not necessarily byte for byte identical, such as JSON serializations of the same models.
+     */
+    public static String weakEtag (String version) {
+        return "W/" + etag(version);
+    }
+
+    /**
+     * Set the ETag of a response, and check whether the client already has that version. Strong and weak ETags are
+     * compared weakly, as If-None-Match requires.
+     *
+     * @return true if the request's If-None-Match header holds the ETag, in which case the response status has been
+     *         set to 304 Not Modified and the caller should return an empty body without computing the response.
+     */
+    public static boolean notModified (Request req, Response res, String etag) {
+        res.header("ETag", etag);
+        String ifNoneMatch = req.headers("If-None-Match");
+        if (ifNoneMatch == null) return false;
+        String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.startsWith("W/")) trimmed = trimmed.substring(2);
+            if (trimmed.equals(opaqueTag) || trimmed.equals("*")) {
+                res.status(HttpStatus.NOT_MODIFIED_304);
+                return true;
+            }
+        }
+        return false;
+    }
 }
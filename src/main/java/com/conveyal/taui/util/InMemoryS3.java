@@ -0,0 +1,133 @@
+package com.conveyal.taui.util;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A stand-in for S3 that keeps objects in memory, for measuring and exercising upload code without a network
+ * connection or AWS credentials. Only the handful of calls the analysis server makes to store and fetch objects are
+ * supported, anything else throws UnsupportedOperationException.
+ *
+ * An optional delay is added to every request to approximate the round trip to a real S3 bucket, which is what
+ * dominates when many small objects are uploaded one after another.
+ */
+public class InMemoryS3 extends AbstractAmazonS3 {
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    private final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<>();
+
+    private final long latencyMillis;
+
+    public InMemoryS3 () {
+        this(0);
+    }
+
+    public InMemoryS3 (long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public PutObjectResult putObject (PutObjectRequest request) {
+        try {
+            InputStream input = request.getFile() != null
+                    ? new FileInputStream(request.getFile())
+                    : request.getInputStream();
+            byte[] bytes;
+            try {
+                bytes = ByteStreams.toByteArray(input);
+            } finally {
+                input.close();
+            }
+            ObjectMetadata om = request.getMetadata() != null ? request.getMetadata().clone() : new ObjectMetadata();
+            om.setContentLength(bytes.length);
+            String path = path(request.getBucketName(), request.getKey());
+            objects.put(path, bytes);
+            metadata.put(path, om);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        simulateLatency();
+        return new PutObjectResult();
+    }
+
+    @Override
+    public PutObjectResult putObject (String bucketName, String key, File file) {
+        return putObject(new PutObjectRequest(bucketName, key, file));
+    }
+
+    @Override
+    public PutObjectResult putObject (String bucketName, String key, InputStream input, ObjectMetadata om) {
+        return putObject(new PutObjectRequest(bucketName, key, input, om));
+    }
+
+    @Override
+    public S3Object getObject (String bucketName, String key) {
+        simulateLatency();
+        String path = path(bucketName, key);
+        byte[] bytes = objects.get(path);
+        if (bytes == null) {
+            AmazonS3Exception e = new AmazonS3Exception("The specified key does not exist.");
+            e.setStatusCode(HttpStatus.NOT_FOUND_404);
+            e.setErrorCode("NoSuchKey");
+            throw e;
+        }
+        S3Object object = new S3Object();
+        object.setBucketName(bucketName);
+        object.setKey(key);
+        object.setObjectMetadata(metadata.get(path));
+        object.setObjectContent(new ByteArrayInputStream(bytes));
+        return object;
+    }
+
+    @Override
+    public boolean doesObjectExist (String bucketName, String key) {
+        simulateLatency();
+        return objects.containsKey(path(bucketName, key));
+    }
+
+    @Override
+    public void deleteObject (String bucketName, String key) {
+        simulateLatency();
+        String path = path(bucketName, key);
+        objects.remove(path);
+        metadata.remove(path);
+    }
+
+    /** @return the number of objects currently stored, across all buckets. */
+    public int size () {
+        return objects.size();
+    }
+
+    /** @return the total size in bytes of all objects stored, across all buckets. */
+    public long totalBytes () {
+        return objects.values().stream().mapToLong(b -> b.length).sum();
+    }
+
+    private static String path (String bucketName, String key) {
+        return bucketName + "/" + key;
+    }
+
+    private void simulateLatency () {
+        if (latencyMillis <= 0) return;
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -3,9 +3,14 @@ package com.conveyal.taui.util;
 import com.conveyal.geojson.GeoJsonModule;
 import com.conveyal.r5.model.json_serialization.JavaLocalDateSerializer;
 import com.conveyal.taui.models.JsonViews;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.mongojack.DBCursor;
 import org.mongojack.internal.MongoJackModule;
+import spark.Response;
+
+import java.io.IOException;
 
 public abstract class JsonUtil {
 
@@ -31,4 +36,25 @@ public abstract class JsonUtil {
         return objectMapper;
     }
 
+    /**
+     * Write each value from a database cursor into the HTTP response as an element of a JSON array, as it is read,
+     * so that however many values there are only one is held in memory at a time. The cursor is closed when done.
+     * Routes using this must be registered without a response transformer, and return the result of this method.
+     *
+     * @return an empty string, for the route to return as the rest of the response body
+     */
+    public static String writeJsonArray (DBCursor<?> cursor, Response res) throws IOException {
+        try {
+            JsonGenerator generator = objectMapper.getFactory().createGenerator(res.raw().getOutputStream());
+            generator.writeStartArray();
+            while (cursor.hasNext()) {
+                objectMapper.writeValue(generator, cursor.next());
+            }
+            generator.writeEndArray();
+            generator.flush();
+        } finally {
+            cursor.close();
+        }
+        return "";
+    }
 }
@@ -0,0 +1,215 @@
+package com.conveyal.taui.util;
+
+import com.conveyal.r5.util.ExceptionUtils;
+import com.conveyal.taui.AnalysisServerException;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.Files;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Receives a multipart form upload using the streaming API of commons-fileupload. Unlike parseParameterMap with a
+ * DiskFileItemFactory, which buffers every part to a temporary file that must then be copied to where it is needed,
+ * each file part is written exactly once, straight from the request into its own file in a single directory. The
+ * SHA-256 hash and size of each file are computed as its bytes go by, and a listener can start working on each file
+ * as soon as it has arrived, while later parts of the request are still being received.
+ *
+ * Files keep their uploaded names (stripped of any path and unsafe characters), so files that belong together, such
+ * as the parts of a shapefile, can be opened side by side in the upload directory. The caller owns the directory and
+ * should delete() the upload once it has finished with the files.
+ */
+public class MultipartUpload {
+    private static final Logger LOG = LoggerFactory.getLogger(MultipartUpload.class);
+
+    /** The directory all the uploaded files were written to. */
+    public final File directory;
+
+    private final Map<String, List<String>> fields = new HashMap<>();
+
+    private final Map<String, List<UploadedFile>> files = new HashMap<>();
+
+    private MultipartUpload (File directory) {
+        this.directory = directory;
+    }
+
+    /** Receive all the parts of the request into a new temporary directory. */
+    public static MultipartUpload receive (Request req) {
+        return receive(req, null);
+    }
+
+    /**
+     * Receive all the parts of the request into a new temporary directory, calling the listener on the request thread
+     * as each file is completely written, before the following parts are read.
+     */
+    public static MultipartUpload receive (Request req, Consumer<UploadedFile> onFile) {
+        MultipartUpload upload = new MultipartUpload(Files.createTempDir());
+        try {
+            FileItemIterator parts = new ServletFileUpload().getItemIterator(req.raw());
+            while (parts.hasNext()) {
+                FileItemStream part = parts.next();
+                try (InputStream in = part.openStream()) {
+                    if (part.isFormField()) {
+                        upload.fields.computeIfAbsent(part.getFieldName(), k -> new ArrayList<>())
+                                .add(Streams.asString(in, "UTF-8"));
+                    } else {
+                        UploadedFile file = upload.write(part.getFieldName(), part.getName(), in);
+                        upload.files.computeIfAbsent(part.getFieldName(), k -> new ArrayList<>()).add(file);
+                        if (onFile != null) onFile.accept(file);
+                    }
+                }
+            }
+        } catch (FileUploadException | IOException e) {
+            upload.delete();
+            throw AnalysisServerException.fileUpload("Error uploading files. " + ExceptionUtils.asString(e));
+        } catch (RuntimeException e) {
+            upload.delete();
+            throw e;
+        }
+        return upload;
+    }
+
+    /** Copy a part to its file, hashing and counting the bytes on the way. */
+    private UploadedFile write (String fieldName, String name, InputStream in) throws IOException {
+        File file = new File(directory, uniqueFileName(name));
+        HashingOutputStream out = new HashingOutputStream(Hashing.sha256(),
+                new BufferedOutputStream(new FileOutputStream(file)));
+        long size;
+        try {
+            size = Streams.copy(in, out, false);
+        } finally {
+            out.close();
+        }
+        UploadedFile uploadedFile = new UploadedFile(fieldName, name, file, size, out.hash().toString());
+        LOG.info("Received {} ({} bytes)", uploadedFile.name, size);
+        return uploadedFile;
+    }
+
+    /** Strip any path from a client supplied file name and make it safe and unique within the directory. */
+    private String uniqueFileName (String name) {
+        String baseName = name == null ? "" : name.replace('\\', '/');
+        baseName = baseName.substring(baseName.lastIndexOf('/') + 1).replaceAll("[^a-zA-Z0-9._-]", "-");
+        if (baseName.isEmpty() || baseName.startsWith(".")) baseName = "upload" + baseName;
+        String fileName = baseName;
+        for (int i = 1; new File(directory, fileName).exists(); i++) {
+            fileName = String.format("%d-%s", i, baseName);
+        }
+        return fileName;
+    }
+
+    /**
+     * @return the value of the named form field. Small JSON documents are often uploaded as files rather than plain
+     * fields, so if there is no such field the contents of the first file uploaded under that name are returned.
+     * Null if there is neither.
+     */
+    public String getString (String name) {
+        List<String> values = fields.get(name);
+        if (values != null && !values.isEmpty()) return values.get(0);
+        List<UploadedFile> uploadedFiles = files.get(name);
+        if (uploadedFiles != null && !uploadedFiles.isEmpty()) {
+            try {
+                return Files.toString(uploadedFiles.get(0).file, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw AnalysisServerException.fileUpload("Unable to read " + name + ". " + ExceptionUtils.asString(e));
+            }
+        }
+        return null;
+    }
+
+    /** @return the value of the named form field, throwing a bad request exception if it was not supplied. */
+    public String getRequiredString (String name) {
+        String value = getString(name);
+        if (value == null) throw AnalysisServerException.badRequest("Missing required field " + name + ".");
+        return value;
+    }
+
+    /** @return the first file uploaded under the given field name, throwing a bad request exception if there is none. */
+    public File getRequiredFile (String fieldName) {
+        List<UploadedFile> uploadedFiles = getFiles(fieldName);
+        if (uploadedFiles.isEmpty()) throw AnalysisServerException.badRequest("Missing required file " + fieldName + ".");
+        return uploadedFiles.get(0).file;
+    }
+
+    /** @return all the files uploaded under the given field name, in the order they arrived. */
+    public List<UploadedFile> getFiles (String fieldName) {
+        return files.getOrDefault(fieldName, Collections.emptyList());
+    }
+
+    /**
+     * Find a shapefile among the files uploaded under the given field name. The .shp, .prj and .dbf must all be
+     * present (the .shx is optional) and, as they were written side by side, can be read directly from where they are.
+     *
+     * @return the .shp file
+     */
+    public File getShapefile (String fieldName) {
+        Map<String, UploadedFile> filesByName = new HashMap<>();
+        for (UploadedFile file : getFiles(fieldName)) filesByName.put(file.name, file);
+
+        UploadedFile shp = filesByName.values().stream().filter(f -> f.name.endsWith(".shp")).findAny().orElse(null);
+        if (shp == null) throw AnalysisServerException.fileUpload("Shapefile upload must contain .shp, .prj, and .dbf");
+
+        String baseName = shp.name.substring(0, shp.name.length() - 4);
+        String fileBaseName = shp.file.getPath().substring(0, shp.file.getPath().length() - 4);
+        for (String extension : new String[] {".prj", ".dbf"}) {
+            UploadedFile sibling = filesByName.get(baseName + extension);
+            if (sibling == null) {
+                throw AnalysisServerException.fileUpload("Shapefile upload must contain .shp, .prj, and .dbf");
+            }
+            if (!sibling.file.getPath().equals(fileBaseName + extension)) {
+                throw AnalysisServerException.fileUpload("Shapefile parts must not share names with other files.");
+            }
+        }
+        return shp.file;
+    }
+
+    /** Delete the upload directory and all the files in it. The directory is flat, so there is no need to recurse. */
+    public void delete () {
+        File[] contents = directory.listFiles();
+        if (contents != null) for (File file : contents) file.delete();
+        directory.delete();
+    }
+
+    /** A file received as one part of a multipart upload. */
+    public static class UploadedFile {
+        /** The name of the form field the file was uploaded under. */
+        public final String fieldName;
+
+        /** The file name supplied by the client. */
+        public final String name;
+
+        /** Where the file was written. */
+        public final File file;
+
+        public final long size;
+
+        /** The hex SHA-256 hash of the file contents. */
+        public final String sha256;
+
+        UploadedFile (String fieldName, String name, File file, long size, String sha256) {
+            this.fieldName = fieldName;
+            this.name = name;
+            this.file = file;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+}
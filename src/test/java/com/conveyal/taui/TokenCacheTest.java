@@ -0,0 +1,89 @@
+package com.conveyal.taui;
+
+import com.auth0.jwt.JWTSigner;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that verified tokens are remembered only until they expire, and that invalid tokens are never remembered.
+ */
+public class TokenCacheTest {
+    private static final byte[] SECRET = "secret".getBytes(StandardCharsets.UTF_8);
+    private static final String AUDIENCE = "analysis";
+
+    @Test
+    public void verifiedTokensAreRemembered () throws Exception {
+        TokenCache tokenCache = new TokenCache(SECRET, AUDIENCE);
+        String token = sign(SECRET, nowSeconds() + 3600);
+        assertThat(tokenCache.get(token), nullValue());
+
+        Map<String, Object> jwt = tokenCache.verify(token);
+        tokenCache.put(token, jwt, "group");
+        TokenCache.VerifiedToken verified = tokenCache.get(token);
+        assertThat(verified, notNullValue());
+        assertThat(verified.accessGroup, equalTo("group"));
+        assertThat(verified.email, equalTo("user@example.com"));
+    }
+
+    @Test
+    public void expiredTokensAreForgotten () {
+        TokenCache tokenCache = new TokenCache(SECRET, AUDIENCE);
+        long now = nowSeconds();
+
+        // A token expires at the start of the second given by its exp claim.
+        String expiresNow = "expires-now";
+        tokenCache.put(expiresNow, claims(now), "group");
+        assertThat(tokenCache.get(expiresNow), nullValue());
+
+        String expired = "expired";
+        tokenCache.put(expired, claims(now - 1), "group");
+        assertThat(tokenCache.get(expired), nullValue());
+
+        String current = "current";
+        tokenCache.put(current, claims(now + 60), "group");
+        assertThat(tokenCache.get(current), notNullValue());
+    }
+
+    @Test
+    public void invalidTokensAreNotRemembered () {
+        TokenCache tokenCache = new TokenCache(SECRET, AUDIENCE);
+        String forged = sign("another secret".getBytes(StandardCharsets.UTF_8), nowSeconds() + 3600);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            assertThat(tokenCache.get(forged), nullValue());
+            try {
+                tokenCache.verify(forged);
+                fail("A token with the wrong signature was verified.");
+            } catch (Exception e) {
+                // Expected
+            }
+        }
+        TokenCache.Statistics statistics = tokenCache.getStatistics();
+        assertThat(statistics.size, equalTo(0L));
+        assertThat(statistics.verifications, equalTo(2L));
+    }
+
+    private static long nowSeconds () {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static Map<String, Object> claims (long exp) {
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("aud", AUDIENCE);
+        claims.put("email", "user@example.com");
+        claims.put("exp", exp);
+        return claims;
+    }
+
+    private static String sign (byte[] secret, long exp) {
+        return new JWTSigner(secret).sign(claims(exp));
+    }
+}
@@ -0,0 +1,106 @@
+package com.conveyal.taui.analysis;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Check that identical single point requests share the result of the first, and that only results that can be reused
+ * are kept.
+ */
+public class SinglePointResultCacheTest {
+    private static final String KEY = SinglePointResultCache.key(new byte[] {1, 2, 3}, "gzip");
+
+    @Test
+    public void waitersShareTheOwnersResult () {
+        SinglePointResultCache cache = new SinglePointResultCache();
+        SinglePointResultCache.Claim owner = cache.claim(KEY);
+        SinglePointResultCache.Claim waiter = cache.claim(KEY);
+        assertThat(owner.owner, equalTo(true));
+        assertThat(waiter.owner, equalTo(false));
+
+        SinglePointResultCache.Result result = result(100);
+        owner.complete(result);
+        assertThat(waiter.await(), sameInstance(result));
+        assertThat(cache.get(KEY), sameInstance(result));
+        assertThat(cache.getStatistics().coalesced, equalTo(1L));
+
+        // Once the result is kept, a new claim is not held up by the old one.
+        assertThat(cache.claim(KEY).owner, equalTo(true));
+    }
+
+    @Test
+    public void oneWaiterTakesOverWhenTheOwnerFails () throws Exception {
+        SinglePointResultCache cache = new SinglePointResultCache();
+        SinglePointResultCache.Claim owner = cache.claim(KEY);
+        SinglePointResultCache.Claim first = cache.claim(KEY);
+        SinglePointResultCache.Claim second = cache.claim(KEY);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CompletionService<SinglePointResultCache.Claim> waiting = new ExecutorCompletionService<>(executor);
+            waiting.submit(() -> first.await() == null ? first : null);
+            waiting.submit(() -> second.await() == null ? second : null);
+
+            owner.complete(null);
+            assertThat(cache.get(KEY), nullValue());
+
+            // Exactly one of the waiters stops waiting, as the new owner of the claim.
+            SinglePointResultCache.Claim newOwner = waiting.take().get();
+            assertThat(newOwner.owner, equalTo(true));
+            assertThat(waiting.poll(200, TimeUnit.MILLISECONDS), nullValue());
+
+            SinglePointResultCache.Claim stillWaiting = newOwner == first ? second : first;
+            assertThat(stillWaiting.owner, equalTo(false));
+            newOwner.complete(result(100));
+            Future<SinglePointResultCache.Claim> last = waiting.poll(10, TimeUnit.SECONDS);
+            assertThat(last.get(), nullValue());
+            assertThat(cache.get(KEY).body.length, equalTo(100));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void waitersGiveUpAfterTheMaximumWait () {
+        SinglePointResultCache cache = new SinglePointResultCache(100);
+        cache.claim(KEY);
+        SinglePointResultCache.Claim waiter = cache.claim(KEY);
+
+        assertThat(waiter.await(), nullValue());
+        assertThat(waiter.owner, equalTo(false));
+
+        // A request that gave up asks a worker itself, but only the owner's result is kept.
+        waiter.complete(result(100));
+        assertThat(cache.get(KEY), nullValue());
+    }
+
+    @Test
+    public void largeResultsAreNotKept () {
+        SinglePointResultCache cache = new SinglePointResultCache();
+        SinglePointResultCache.Claim owner = cache.claim(KEY);
+        SinglePointResultCache.Claim waiter = cache.claim(KEY);
+        SinglePointResultCache.Result tooLarge = result(SinglePointResultCache.MAX_RESULT_BYTES + 1);
+        owner.complete(tooLarge);
+        assertThat(waiter.await(), sameInstance(tooLarge));
+        assertThat(cache.get(KEY), nullValue());
+
+        SinglePointResultCache.Claim next = cache.claim(KEY);
+        next.complete(result(SinglePointResultCache.MAX_RESULT_BYTES));
+        assertThat(cache.get(KEY).body.length, equalTo(SinglePointResultCache.MAX_RESULT_BYTES));
+    }
+
+    private static SinglePointResultCache.Result result (int nBytes) {
+        return new SinglePointResultCache.Result("application/octet-stream", "gzip", new byte[nBytes]);
+    }
+}
@@ -0,0 +1,132 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Check how single point requests are spread across the workers in a category.
+ */
+public class WorkerCatalogTest {
+
+    @Test
+    public void scenariosStayOnOneWorker () {
+        WorkerCatalog catalog = new WorkerCatalog();
+        WorkerCategory category = catalogWorkers(catalog, 3);
+        Set<String> workersUsed = new HashSet<>();
+        for (int s = 0; s < 30; s++) {
+            String scenarioId = "scenario-" + s;
+            SinglePointWorker first = catalog.startSinglePointRequest(category, scenarioId);
+            catalog.finishSinglePointRequest(first);
+            for (int r = 0; r < 5; r++) {
+                SinglePointWorker worker = catalog.startSinglePointRequest(category, scenarioId);
+                assertThat(worker.workerId, equalTo(first.workerId));
+                catalog.finishSinglePointRequest(worker);
+            }
+            workersUsed.add(first.workerId);
+        }
+        assertThat(workersUsed.size(), equalTo(3));
+    }
+
+    @Test
+    public void busyWorkersSpillOver () {
+        WorkerCatalog catalog = new WorkerCatalog();
+        WorkerCategory category = catalogWorkers(catalog, 2);
+        List<SinglePointWorker> outstanding = new ArrayList<>();
+        for (int r = 0; r < WorkerCatalog.MAX_SINGLE_POINT_REQUESTS_PER_WORKER; r++) {
+            outstanding.add(catalog.startSinglePointRequest(category, "scenario"));
+        }
+        String preferred = outstanding.get(0).workerId;
+
+        // The preferred worker is at its limit, so requests go to the other worker until it is too.
+        for (int r = 0; r < WorkerCatalog.MAX_SINGLE_POINT_REQUESTS_PER_WORKER; r++) {
+            SinglePointWorker worker = catalog.startSinglePointRequest(category, "scenario");
+            assertThat(worker.workerId, not(equalTo(preferred)));
+            outstanding.add(worker);
+        }
+        assertThat(catalog.startSinglePointRequest(category, "scenario"), sameInstance(SinglePointWorker.BUSY));
+
+        // Once the preferred worker has finished a request, it is used again.
+        catalog.finishSinglePointRequest(outstanding.get(0));
+        assertThat(catalog.startSinglePointRequest(category, "scenario").workerId, equalTo(preferred));
+    }
+
+    @Test
+    public void unreachableWorkersAreEjected () {
+        WorkerCatalog catalog = new WorkerCatalog();
+        WorkerCategory category = catalogWorkers(catalog, 2);
+        SinglePointWorker first = catalog.startSinglePointRequest(category, "scenario");
+        catalog.recordSinglePointFailure(first, true);
+        catalog.finishSinglePointRequest(first);
+
+        SinglePointWorker second = catalog.startSinglePointRequest(category, "scenario");
+        assertThat(second.workerId, not(equalTo(first.workerId)));
+        catalog.finishSinglePointRequest(second);
+
+        // The only worker left is never ejected for timing out, as there is no other worker to take its requests.
+        for (int r = 0; r < 5; r++) {
+            SinglePointWorker worker = catalog.startSinglePointRequest(category, "scenario");
+            assertThat(worker.workerId, equalTo(second.workerId));
+            catalog.recordSinglePointFailure(worker, false);
+            catalog.finishSinglePointRequest(worker);
+        }
+        assertThat(catalog.startSinglePointRequest(category, "scenario").workerId, equalTo(second.workerId));
+    }
+
+    @Test
+    public void slowWorkersAreEjected () {
+        WorkerCatalog catalog = new WorkerCatalog();
+        WorkerCategory category = catalogWorkers(catalog, 2);
+        SinglePointWorker first = catalog.startSinglePointRequest(category, "scenario");
+        catalog.finishSinglePointRequest(first);
+        String preferred = first.workerId;
+
+        // A worker that times out is given a few chances before it is ejected.
+        for (int r = 0; r < 3; r++) {
+            SinglePointWorker worker = catalog.startSinglePointRequest(category, "scenario");
+            assertThat(worker.workerId, equalTo(preferred));
+            catalog.recordSinglePointFailure(worker, false);
+            catalog.finishSinglePointRequest(worker);
+        }
+        SinglePointWorker other = catalog.startSinglePointRequest(category, "scenario");
+        assertThat(other.workerId, not(equalTo(preferred)));
+        catalog.finishSinglePointRequest(other);
+    }
+
+    @Test
+    public void latencyIsAveraged () {
+        SinglePointLoad load = new SinglePointLoad();
+        load.recordLatency(1000);
+        assertThat(load.latencyMsec, equalTo(1000.0));
+        load.recordLatency(2000);
+        assertThat(load.latencyMsec, greaterThan(1000.0));
+        assertThat(load.latencyMsec, closeTo(1000 + SinglePointLoad.LATENCY_WEIGHT * 1000, 1e-6));
+    }
+
+    /** Catalog the given number of workers with the same network and version, returning their category. */
+    private static WorkerCategory catalogWorkers (WorkerCatalog catalog, int nWorkers) {
+        WorkerCategory category = null;
+        for (int i = 0; i < nWorkers; i++) {
+            WorkerStatus status = new WorkerStatus();
+            status.workerId = "worker-" + i;
+            status.workerVersion = "v1";
+            status.ipAddress = "10.0.0." + i;
+            status.networks.add("network");
+            catalog.catalog(status);
+            category = status.getWorkerCategory();
+        }
+        return category;
+    }
+}
@@ -0,0 +1,162 @@
+package com.conveyal.taui.controllers;
+
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.taui.AnalysisServerConfig;
+import com.conveyal.taui.AnalysisServerTest;
+import com.conveyal.taui.analysis.ScenarioPublisher;
+import com.conveyal.taui.analysis.broker.JobStatus;
+import com.conveyal.taui.analysis.broker.WorkerObservation;
+import com.conveyal.taui.models.Bundle;
+import com.conveyal.taui.models.RegionalAnalysis;
+import com.conveyal.taui.persistence.Persistence;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import io.restassured.RestAssured;
+import io.restassured.config.DecoderConfig;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.isEmptyString;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Check that the admin listings of jobs and workers look up their regional analyses and bundles with a fixed number
+ * of database queries, however many jobs and workers there are. Queries are counted with the database profiler.
+ * Also check that published scenarios are served to workers, compressed only when the worker accepts it.
+ */
+public class BrokerControllerTest {
+    private static MongoClient mongoClient;
+    private static DB db;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // start server if it isn't already running
+        AnalysisServerTest.setUp();
+
+        mongoClient = new MongoClient();
+        db = mongoClient.getDB(AnalysisServerConfig.databaseName);
+        db.command(new BasicDBObject("profile", 2));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        db.command(new BasicDBObject("profile", 0));
+        mongoClient.close();
+    }
+
+    @Test
+    public void jobListingQueriesOnce () {
+        for (int nJobs : new int[] {1, 25}) {
+            List<JobStatus> jobStatuses = new ArrayList<>();
+            for (int i = 0; i < nJobs; i++) {
+                RegionalAnalysis analysis = new RegionalAnalysis();
+                analysis.accessGroup = "OFFLINE";
+                analysis.name = "analysis-" + i;
+                Persistence.regionalAnalyses.create(analysis);
+                JobStatus jobStatus = new JobStatus();
+                jobStatus.jobId = analysis._id;
+                jobStatuses.add(jobStatus);
+            }
+            jobStatuses.add(new JobStatus(jobStatuses));
+
+            long queries = countQueries("regional-analyses", () -> BrokerController.addRegionalAnalyses(jobStatuses));
+
+            assertThat(queries, equalTo(1L));
+            for (JobStatus jobStatus : jobStatuses.subList(0, nJobs)) {
+                assertThat(jobStatus.regionalAnalysis, notNullValue());
+                assertThat(jobStatus.regionalAnalysis.name, notNullValue());
+            }
+        }
+    }
+
+    @Test
+    public void workerListingQueriesOnce () {
+        for (int nWorkers : new int[] {1, 50}) {
+            List<WorkerObservation> observations = new ArrayList<>();
+            for (int i = 0; i < nWorkers; i++) {
+                Bundle bundle = new Bundle();
+                bundle.accessGroup = "OFFLINE";
+                bundle.name = "bundle-" + i;
+                Persistence.bundles.create(bundle);
+                WorkerStatus status = new WorkerStatus();
+                status.workerId = "worker-" + i;
+                status.workerVersion = "v1";
+                status.networks.add(bundle._id);
+                // A network whose bundle has been deleted
+                status.networks.add("deleted-" + i);
+                observations.add(new WorkerObservation(status));
+            }
+
+            long queries = countQueries("bundles", () -> BrokerController.addBundles(observations));
+
+            assertThat(queries, equalTo(1L));
+            for (WorkerObservation observation : observations) {
+                assertThat(observation.bundles.size(), equalTo(1));
+            }
+        }
+    }
+
+    @Test
+    public void canGetPublishedScenario () {
+        String bundleId = UUID.randomUUID().toString();
+        Scenario scenario = new Scenario();
+        scenario.id = UUID.randomUUID().toString();
+        ScenarioPublisher.publish(bundleId, scenario);
+        String path = "internal/scenario/" + bundleId + "/" + scenario.id;
+
+        // Rest Assured asks for and decompresses gzip by default.
+        String etag = given()
+            .port(7070)
+            .header("Accept-Encoding", "gzip")
+            .get(path)
+        .then()
+            .statusCode(200)
+            .header("Content-Encoding", equalTo("gzip"))
+            .body("id", equalTo(scenario.id))
+            .extract().header("ETag");
+
+        given()
+            .port(7070)
+            .config(RestAssured.config().decoderConfig(DecoderConfig.decoderConfig().noContentDecoders()))
+            .get(path)
+        .then()
+            .statusCode(200)
+            .header("Content-Encoding", nullValue())
+            .body("id", equalTo(scenario.id));
+
+        given()
+            .port(7070)
+            .header("If-None-Match", etag)
+            .get(path)
+        .then()
+            .statusCode(304)
+            .body(isEmptyString());
+
+        // A scenario that was never published is not found, even if the client claims to have it.
+        given()
+            .port(7070)
+            .header("If-None-Match", etag)
+            .get("internal/scenario/" + bundleId + "/" + UUID.randomUUID())
+        .then()
+            .statusCode(404);
+    }
+
+    /** @return the number of queries made on the given collection while running the given code. */
+    private static long countQueries (String collection, Runnable runnable) {
+        BasicDBObject query = new BasicDBObject("ns", db.getName() + "." + collection).append("op", "query");
+        long before = db.getCollection("system.profile").count(query);
+        runnable.run();
+        return db.getCollection("system.profile").count(query) - before;
+    }
+}
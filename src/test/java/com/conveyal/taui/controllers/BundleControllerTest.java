@@ -111,7 +111,7 @@ public class BundleControllerTest {
         assertThat(json.get("regionId").asText(), equalTo(regionId));
         removeDynamicValues(json);
         // remove additional key/values that change between each test run
-        removeKeysAndValues(json, new String[]{"bundleScopedFeedId", "feedId", "regionId"});
+        removeKeysAndValues(json, new String[]{"bundleScopedFeedId", "feedId", "regionId", "sha256"});
         assertThat(json, matchesSnapshot());
     }
 }
@@ -0,0 +1,123 @@
+package com.conveyal.taui.grids;
+
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.taui.AnalysisServerException;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that parsing a CSV file in chunks gives the same grids as parsing it on a single thread, including when a
+ * split falls inside a quoted field, and that bad rows are reported with their row number either way.
+ */
+public class CsvGridBuilderTest {
+    private static final int ZOOM = SeamlessCensusGridExtractor.ZOOM;
+
+    /** Large enough to be split into three chunks, as chunks are at least 4 MiB. */
+    private static final long FILE_BYTES = 9 * 1024 * 1024;
+
+    private static final String HEADER = "lat,lon,name,jobs,workers\n";
+
+    @Test
+    public void splitParseMatchesSingleThreadParse () throws Exception {
+        File csv = writeCsv(FILE_BYTES, -1, -1);
+        Map<String, Grid> split = CsvGridBuilder.fromCsv(csv, "lat", "lon", ZOOM, (done, total) -> {});
+        Map<String, Grid> single = CsvGridBuilder.fromCsv(csv, "lat", "lon", ZOOM, (done, total) -> {}, false);
+        assertThat(split.keySet(), equalTo(single.keySet()));
+        assertThat(split.size(), equalTo(2));
+        for (String column : single.keySet()) assertGridsEqual(split.get(column), single.get(column));
+        csv.delete();
+    }
+
+    @Test
+    public void quotedNewlineAtSplitIsParsedAgain () throws Exception {
+        // The first split is at the first newline at least 4 MiB after the header, which is inside a quoted field.
+        File csv = writeCsv(FILE_BYTES, HEADER.length() + 4 * 1024 * 1024, -1);
+        Map<String, Grid> split = CsvGridBuilder.fromCsv(csv, "lat", "lon", ZOOM, (done, total) -> {});
+        Map<String, Grid> single = CsvGridBuilder.fromCsv(csv, "lat", "lon", ZOOM, (done, total) -> {}, false);
+        assertThat(split.keySet(), equalTo(single.keySet()));
+        assertThat(split.size(), equalTo(2));
+        for (String column : single.keySet()) assertGridsEqual(split.get(column), single.get(column));
+        csv.delete();
+    }
+
+    @Test
+    public void badCoordinatesAreReportedWithTheirRow () throws Exception {
+        File small = writeCsv(10_000, -1, 42);
+        assertFailsOnRow(small, 42);
+        small.delete();
+
+        // A bad row in a later chunk of a split file
+        File large = writeCsv(FILE_BYTES, -1, 150_000);
+        assertFailsOnRow(large, 150_000);
+        large.delete();
+    }
+
+    private static void assertFailsOnRow (File csv, int row) throws Exception {
+        try {
+            CsvGridBuilder.fromCsv(csv, "lat", "lon", ZOOM, (done, total) -> {});
+            fail("A row with bad coordinates was accepted.");
+        } catch (AnalysisServerException e) {
+            assertThat(e.message, containsString("on row " + row + "."));
+        }
+    }
+
+    private static void assertGridsEqual (Grid actual, Grid expected) {
+        assertThat(actual.zoom, equalTo(expected.zoom));
+        assertThat(actual.west, equalTo(expected.west));
+        assertThat(actual.north, equalTo(expected.north));
+        assertThat(actual.width, equalTo(expected.width));
+        assertThat(actual.height, equalTo(expected.height));
+        for (int x = 0; x < expected.width; x++) {
+            for (int y = 0; y < expected.height; y++) {
+                // The values are whole numbers, so their sums are exact in any order.
+                assertThat(actual.grid[x][y], equalTo(expected.grid[x][y]));
+            }
+        }
+    }
+
+    /**
+     * Write a CSV file of points spread over a few kilometers, of at least the given size.
+     *
+     * @param quotedNewlineAt if not negative, the row spanning this byte offset has a quoted name containing a
+     *                        newline, which comes after the offset
+     * @param badRow if positive, the data row (counting from one) whose latitude is not a number
+     */
+    private static File writeCsv (long bytes, long quotedNewlineAt, int badRow) throws IOException {
+        File csv = File.createTempFile("points", ".csv");
+        Random random = new Random(bytes);
+        long position = 0;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv))) {
+            writer.write(HEADER);
+            position += HEADER.length();
+            for (int row = 1; position < bytes || row <= badRow; row++) {
+                String lat = String.format(Locale.ROOT, "%.6f", 39.9 + random.nextDouble() * 0.05);
+                if (row == badRow) lat = "north";
+                String lon = String.format(Locale.ROOT, "%.6f", -75.2 + random.nextDouble() * 0.05);
+                String name = "Establishment " + row;
+                String counts = "," + random.nextInt(100) + "," + random.nextInt(10) + "\n";
+                String line = lat + "," + lon + "," + name + counts;
+                if (quotedNewlineAt >= 0 && position <= quotedNewlineAt
+                        && position + line.length() > quotedNewlineAt) {
+                    StringBuilder padding = new StringBuilder();
+                    for (int i = 0; i < 200; i++) padding.append('x');
+                    line = lat + "," + lon + ",\"" + name + padding + "\nsecond line\"" + counts;
+                }
+                writer.write(line);
+                position += line.length();
+            }
+        }
+        return csv;
+    }
+}
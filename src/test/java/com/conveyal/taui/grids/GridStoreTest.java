@@ -0,0 +1,185 @@
+package com.conveyal.taui.grids;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.taui.AnalysisServerTest;
+import com.conveyal.taui.models.GridReference;
+import com.conveyal.taui.persistence.Persistence;
+import com.conveyal.taui.util.InMemoryS3;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check the reference counting of grids stored under their content hash, using an in-memory stand-in for S3 and the
+ * database of the test server.
+ */
+public class GridStoreTest {
+    private static final String BUCKET = "grids";
+
+    @BeforeClass
+    public static void setUp () throws Exception {
+        // start server if it isn't already running
+        AnalysisServerTest.setUp();
+    }
+
+    @Test
+    public void identicalGridsAreStoredOnce () {
+        TestS3 s3 = new TestS3();
+        Grid grid = randomGrid();
+        String hash = store(s3, "first", grid);
+        assertThat(s3.puts.get(), equalTo(1));
+
+        assertThat(store(s3, "second", copy(grid)), equalTo(hash));
+        assertThat(s3.puts.get(), equalTo(1));
+        assertThat(s3.size(), equalTo(1));
+        assertThat(Persistence.gridReferences.get(hash).referenceCount, equalTo(2));
+    }
+
+    @Test
+    public void lastReleaseDeletesTheGrid () {
+        TestS3 s3 = new TestS3();
+        Grid grid = randomGrid();
+        String hash = store(s3, "first", grid);
+        store(s3, "second", copy(grid));
+
+        GridStore.release(hash, s3, BUCKET);
+        assertThat(s3.doesObjectExist(BUCKET, key(hash)), equalTo(true));
+        assertThat(Persistence.gridReferences.get(hash).referenceCount, equalTo(1));
+
+        GridStore.release(hash, s3, BUCKET);
+        assertThat(s3.doesObjectExist(BUCKET, key(hash)), equalTo(false));
+        assertThat(Persistence.gridReferences.get(hash), nullValue());
+    }
+
+    @Test
+    public void gridStoredDuringDeletionIsUploadedAgain () throws Exception {
+        TestS3 s3 = new TestS3();
+        Grid grid = randomGrid();
+        String hash = store(s3, "first", grid);
+
+        // Hold the deletion part way through, once the reference has been marked.
+        s3.deleting = new CountDownLatch(1);
+        s3.finishDeleting = new CountDownLatch(1);
+        CompletableFuture<Void> release = CompletableFuture.runAsync(() -> GridStore.release(hash, s3, BUCKET));
+        assertThat(s3.deleting.await(10, TimeUnit.SECONDS), equalTo(true));
+
+        Map<String, Grid> grids = new HashMap<>();
+        grids.put("again", copy(grid));
+        CompletableFuture<Void> store = GridStore.storeAll(grids, s3, BUCKET, name -> {}, new ConcurrentHashMap<>());
+        // Let the deletion finish only once the grid has been referenced again.
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Persistence.gridReferences.get(hash).referenceCount < 1) {
+            if (System.currentTimeMillis() > deadline) fail("The grid was never referenced again.");
+            Thread.sleep(10);
+        }
+        s3.finishDeleting.countDown();
+        release.get(10, TimeUnit.SECONDS);
+        store.get(10, TimeUnit.SECONDS);
+
+        assertThat(s3.doesObjectExist(BUCKET, key(hash)), equalTo(true));
+        assertThat(s3.puts.get(), equalTo(2));
+        GridReference reference = Persistence.gridReferences.get(hash);
+        assertThat(reference.referenceCount, equalTo(1));
+        assertThat(reference.deletingSince, nullValue());
+    }
+
+    @Test
+    public void referencesAreReleasedWhenStoringFails () {
+        TestS3 s3 = new TestS3();
+        s3.failOnPut = 2;
+        Map<String, Grid> grids = new HashMap<>();
+        grids.put("first", randomGrid());
+        grids.put("second", randomGrid());
+
+        Map<String, String> hashesByName = new ConcurrentHashMap<>();
+        try {
+            GridStore.storeAll(grids, s3, BUCKET, name -> {}, hashesByName).join();
+            fail("Storing should have failed.");
+        } catch (CompletionException e) {
+            // Expected
+        }
+
+        // Every grid was referenced before the failure, and releasing them as a caller must leaves nothing behind.
+        assertThat(hashesByName.size(), equalTo(2));
+        hashesByName.values().forEach(hash -> GridStore.release(hash, s3, BUCKET));
+        for (String hash : hashesByName.values()) {
+            assertThat(Persistence.gridReferences.get(hash), nullValue());
+        }
+        assertThat(s3.size(), equalTo(0));
+    }
+
+    /** Store a single grid, returning its hash. */
+    private static String store (TestS3 s3, String name, Grid grid) {
+        Map<String, Grid> grids = new HashMap<>();
+        grids.put(name, grid);
+        Map<String, String> hashesByName = new ConcurrentHashMap<>();
+        GridStore.storeAll(grids, s3, BUCKET, n -> {}, hashesByName).join();
+        return hashesByName.get(name);
+    }
+
+    private static String key (String hash) {
+        return GridStore.getKey(hash, GridExporter.Format.GRID);
+    }
+
+    /** A grid with values unlikely to be stored by any other test, as they share the database. */
+    private static Grid randomGrid () {
+        Random random = new Random();
+        Grid grid = new Grid(9, 20, 20, 200_000, 150_000);
+        for (int x = 0; x < grid.width; x++) {
+            for (int y = 0; y < grid.height; y++) {
+                grid.grid[x][y] = random.nextInt(100);
+            }
+        }
+        return grid;
+    }
+
+    private static Grid copy (Grid grid) {
+        Grid copy = new Grid(grid.zoom, grid.width, grid.height, grid.north, grid.west);
+        for (int x = 0; x < grid.width; x++) {
+            System.arraycopy(grid.grid[x], 0, copy.grid[x], 0, grid.height);
+        }
+        return copy;
+    }
+
+    /** Counts uploads, and can fail an upload or hold up a deletion. */
+    private static class TestS3 extends InMemoryS3 {
+        final AtomicInteger puts = new AtomicInteger();
+        int failOnPut = 0;
+        volatile CountDownLatch deleting, finishDeleting;
+
+        @Override
+        public PutObjectResult putObject (PutObjectRequest request) {
+            if (puts.incrementAndGet() == failOnPut) throw new RuntimeException("Simulated upload failure");
+            return super.putObject(request);
+        }
+
+        @Override
+        public void deleteObject (String bucketName, String key) {
+            if (deleting != null) {
+                deleting.countDown();
+                try {
+                    finishDeleting.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.deleteObject(bucketName, key);
+        }
+    }
+}
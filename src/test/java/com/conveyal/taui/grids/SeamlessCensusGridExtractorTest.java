@@ -0,0 +1,113 @@
+package com.conveyal.taui.grids;
+
+import com.conveyal.data.geobuf.GeobufFeature;
+import com.conveyal.r5.analyst.Grid;
+import com.conveyal.taui.models.Bounds;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Check that rasterizing census features in bands of rows on several threads gives the same grids as rasterizing them
+ * one at a time. The features are built in memory rather than read from seamless-census tiles, so that the fixture
+ * does not depend on the tile format.
+ */
+public class SeamlessCensusGridExtractorTest {
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    @Test
+    public void bandedRasterizationMatchesSingleThreadRasterization () {
+        Bounds bounds = bounds();
+        List<GeobufFeature> features = blocks(bounds, 2_000);
+        Map<String, Grid> banded = SeamlessCensusGridExtractor.rasterizeFeatures(features, bounds);
+        Map<String, Grid> single = rasterizeSequentially(features, bounds);
+
+        assertThat(banded.keySet(), equalTo(single.keySet()));
+        assertThat(banded.size(), equalTo(2));
+        for (String attribute : single.keySet()) {
+            Grid actual = banded.get(attribute);
+            Grid expected = single.get(attribute);
+            assertThat(actual.west, equalTo(expected.west));
+            assertThat(actual.north, equalTo(expected.north));
+            assertThat(actual.width, equalTo(expected.width));
+            assertThat(actual.height, equalTo(expected.height));
+            for (int x = 0; x < expected.width; x++) {
+                for (int y = 0; y < expected.height; y++) {
+                    // The weighted values are summed in a different order, so may differ in their last bits.
+                    double value = expected.grid[x][y];
+                    assertThat(actual.grid[x][y], closeTo(value, 1e-9 * Math.max(1, Math.abs(value))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void featuresWithoutNumericAttributesGiveNoGrids () {
+        Bounds bounds = bounds();
+        List<GeobufFeature> features = blocks(bounds, 10);
+        for (GeobufFeature feature : features) {
+            feature.properties.remove("jobs");
+            feature.properties.remove("workers");
+        }
+        assertThat(SeamlessCensusGridExtractor.rasterizeFeatures(features, bounds).size(), equalTo(0));
+        assertThat(SeamlessCensusGridExtractor.rasterizeFeatures(new ArrayList<>(), bounds).size(), equalTo(0));
+    }
+
+    /** Part of Washington, DC */
+    private static Bounds bounds () {
+        Bounds bounds = new Bounds();
+        bounds.north = 38.95;
+        bounds.east = -76.95;
+        bounds.south = 38.85;
+        bounds.west = -77.10;
+        return bounds;
+    }
+
+    /**
+     * Rectangular census blocks of varying size, some overlapping one another and some crossing the edges of the
+     * bounds, with a whole number of jobs, a fractional number of workers that is sometimes zero, and a name.
+     */
+    private static List<GeobufFeature> blocks (Bounds bounds, int nBlocks) {
+        Random random = new Random(nBlocks);
+        List<GeobufFeature> features = new ArrayList<>();
+        for (int i = 0; i < nBlocks; i++) {
+            double size = 0.001 + random.nextDouble() * (i % 50 == 0 ? 0.05 : 0.005);
+            double west = bounds.west - 0.01 + random.nextDouble() * (bounds.east - bounds.west + 0.02);
+            double south = bounds.south - 0.01 + random.nextDouble() * (bounds.north - bounds.south + 0.02);
+            GeobufFeature feature = new GeobufFeature();
+            feature.geometry = geometryFactory.toGeometry(new Envelope(west, west + size, south, south + size));
+            feature.properties = new HashMap<>();
+            feature.properties.put("jobs", random.nextInt(500));
+            feature.properties.put("workers", i % 7 == 0 ? 0D : random.nextDouble() * 300);
+            feature.properties.put("name", "Block " + i);
+            features.add(feature);
+        }
+        return features;
+    }
+
+    /** Rasterize the features one at a time on this thread, as the extractor originally did. */
+    private static Map<String, Grid> rasterizeSequentially (List<GeobufFeature> features, Bounds bounds) {
+        Map<String, Grid> grids = new HashMap<>();
+        for (GeobufFeature feature : features) {
+            List<Grid.PixelWeight> weights = null;
+            for (Map.Entry<String, Object> e : feature.properties.entrySet()) {
+                if (!(e.getValue() instanceof Number)) continue;
+                Grid grid = grids.computeIfAbsent(e.getKey(), k -> new Grid(SeamlessCensusGridExtractor.ZOOM,
+                        bounds.north, bounds.east, bounds.south, bounds.west));
+                if (weights == null) weights = grid.getPixelWeights(feature.geometry);
+                grid.incrementFromPixelWeights(weights, ((Number) e.getValue()).doubleValue());
+            }
+        }
+        return grids;
+    }
+}
@@ -0,0 +1,231 @@
+package com.conveyal.taui.grids;
+
+import com.conveyal.r5.analyst.Grid;
+import com.google.common.io.Files;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * Check that rasterizing a shapefile on several threads gives the same grids as rasterizing it serially. The
+ * shapefiles are small fixtures written at the start of each test.
+ */
+public class ShapefileRasterizerTest {
+    private static final int ZOOM = SeamlessCensusGridExtractor.ZOOM;
+
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+    /**
+     * More batches of points than may be pending at once, so the reading thread has to wait for batches to finish.
+     * The points fall in a few rows of pixels, so the compute threads contend for the same row locks.
+     */
+    @Test
+    public void pointsMatchSerialRasterization () throws Exception {
+        Random random = new Random(1);
+        List<Geometry> points = new ArrayList<>();
+        int nPoints = ShapefileRasterizer.BATCH_SIZE * (ShapefileRasterizer.MAX_PENDING_BATCHES + 3) + 17;
+        for (int i = 0; i < nPoints; i++) {
+            double lon = -77.1 + random.nextDouble() * 0.1;
+            double lat = 38.9 + random.nextDouble() * 0.005;
+            points.add(geometryFactory.createPoint(new Coordinate(lon, lat)));
+        }
+        File shapefile = writeShapefile(points, Point.class);
+
+        AtomicInteger lastCompleted = new AtomicInteger();
+        Map<String, Grid> concurrent = ShapefileRasterizer.rasterizeOpportunities(shapefile, ZOOM,
+                (completed, total) -> {
+                    assertThat(total, equalTo(nPoints));
+                    lastCompleted.accumulateAndGet(completed, Math::max);
+                });
+        assertThat(lastCompleted.get(), equalTo(nPoints));
+        assertOpportunitiesMatch(concurrent, Grid.fromShapefile(shapefile, ZOOM, (completed, total) -> {}));
+    }
+
+    /** Polygons of varying size overlapping one another, so each is spread over pixels other polygons touch. */
+    @Test
+    public void polygonsMatchSerialRasterization () throws Exception {
+        Random random = new Random(2);
+        List<Geometry> polygons = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            double size = 0.001 + random.nextDouble() * (i % 100 == 0 ? 0.05 : 0.01);
+            double west = -77.1 + random.nextDouble() * 0.1;
+            double south = 38.85 + random.nextDouble() * 0.1;
+            polygons.add(box(west, south, size));
+        }
+        File shapefile = writeShapefile(polygons, Polygon.class);
+
+        Map<String, Grid> concurrent = ShapefileRasterizer.rasterizeOpportunities(shapefile, ZOOM, null);
+        assertOpportunitiesMatch(concurrent, Grid.fromShapefile(shapefile, ZOOM, (completed, total) -> {}));
+    }
+
+    /**
+     * Where polygons overlap, the coverage of a pixel is the sum of the coverage by each polygon but no more than
+     * complete coverage.
+     */
+    @Test
+    public void overlappingMaskCoverageIsCapped () throws Exception {
+        List<Geometry> polygons = new ArrayList<>();
+        polygons.add(box(-77.1, 38.85, 0.1));
+        polygons.add(box(-77.05, 38.88, 0.1));
+        polygons.add(box(-77.05, 38.88, 0.1));
+        polygons.add(box(-77.2, 38.95, 0.02));
+        File shapefile = writeShapefile(polygons, Polygon.class);
+        double maxValue = 100_000;
+
+        Grid mask = ShapefileRasterizer.rasterizeMask(shapefile, ZOOM, maxValue);
+
+        // Each polygon rasterized separately and summed on this thread, then capped
+        Grid expected = gridCovering(polygons);
+        for (Geometry polygon : polygons) {
+            for (Grid.PixelWeight pixel : expected.getPixelWeights(polygon, true)) {
+                expected.grid[pixel.x][pixel.y] += pixel.weight;
+            }
+        }
+        assertSameExtent(mask, expected);
+        boolean anyOverlap = false;
+        for (int x = 0; x < expected.width; x++) {
+            for (int y = 0; y < expected.height; y++) {
+                anyOverlap |= expected.grid[x][y] > 1;
+                double value = Math.min(expected.grid[x][y], 1) * maxValue;
+                assertThat(mask.grid[x][y], closeTo(value, 1e-6));
+                assertThat(mask.grid[x][y], lessThanOrEqualTo(maxValue));
+            }
+        }
+        assertThat(anyOverlap, equalTo(true));
+
+        // A pixel in the middle of the overlap is exactly covered
+        int x = Grid.lonToPixel(-77.01, ZOOM) - expected.west;
+        int y = Grid.latToPixel(38.92, ZOOM) - expected.north;
+        assertThat(mask.grid[x][y], closeTo(maxValue, 1e-6));
+    }
+
+    /** Polygons that do not overlap give the same mask as rasterizing their union, as the mask was first built. */
+    @Test
+    public void separateMaskPolygonsMatchTheirUnion () throws Exception {
+        List<Geometry> polygons = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 20; j++) {
+                // Gaps between the polygons, which are not aligned with the pixels
+                polygons.add(box(-77.1 + i * 0.0071, 38.85 + j * 0.0053, 0.005));
+            }
+        }
+        File shapefile = writeShapefile(polygons, Polygon.class);
+        double maxValue = 100_000;
+
+        Grid mask = ShapefileRasterizer.rasterizeMask(shapefile, ZOOM, maxValue);
+
+        Geometry union = new UnaryUnionOp(polygons).union();
+        Grid expected = gridCovering(polygons);
+        for (Grid.PixelWeight pixel : expected.getPixelWeights(union, true)) {
+            expected.grid[pixel.x][pixel.y] = pixel.weight * maxValue;
+        }
+        assertSameExtent(mask, expected);
+        for (int x = 0; x < expected.width; x++) {
+            for (int y = 0; y < expected.height; y++) {
+                assertThat(mask.grid[x][y], closeTo(expected.grid[x][y], 1e-6));
+            }
+        }
+    }
+
+    private static void assertOpportunitiesMatch (Map<String, Grid> actual, Map<String, Grid> expected) {
+        assertThat(actual.keySet(), equalTo(expected.keySet()));
+        assertThat(actual.size(), equalTo(2));
+        for (String attribute : expected.keySet()) {
+            Grid actualGrid = actual.get(attribute);
+            Grid expectedGrid = expected.get(attribute);
+            assertSameExtent(actualGrid, expectedGrid);
+            for (int x = 0; x < expectedGrid.width; x++) {
+                for (int y = 0; y < expectedGrid.height; y++) {
+                    // The values are summed in a different order, so may differ in their last bits.
+                    double value = expectedGrid.grid[x][y];
+                    assertThat(actualGrid.grid[x][y], closeTo(value, 1e-9 * Math.max(1, Math.abs(value))));
+                }
+            }
+        }
+    }
+
+    private static void assertSameExtent (Grid actual, Grid expected) {
+        assertThat(actual.zoom, equalTo(expected.zoom));
+        assertThat(actual.west, equalTo(expected.west));
+        assertThat(actual.north, equalTo(expected.north));
+        assertThat(actual.width, equalTo(expected.width));
+        assertThat(actual.height, equalTo(expected.height));
+    }
+
+    private static Grid gridCovering (List<Geometry> geometries) {
+        Envelope envelope = new Envelope();
+        for (Geometry geometry : geometries) envelope.expandToInclude(geometry.getEnvelopeInternal());
+        return new Grid(ZOOM, envelope.getMaxY(), envelope.getMaxX(), envelope.getMinY(), envelope.getMinX());
+    }
+
+    private static Geometry box (double west, double south, double size) {
+        return geometryFactory.toGeometry(new Envelope(west, west + size, south, south + size));
+    }
+
+    /**
+     * Write the geometries to a shapefile in WGS84, each with a whole number of jobs, a fractional number of workers
+     * that is sometimes zero, and a name.
+     */
+    private static File writeShapefile (List<Geometry> geometries, Class<? extends Geometry> geometryType)
+            throws Exception {
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("fixture");
+        typeBuilder.setCRS(DefaultGeographicCRS.WGS84);
+        typeBuilder.add("the_geom", geometryType);
+        typeBuilder.add("jobs", Integer.class);
+        typeBuilder.add("workers", Double.class);
+        typeBuilder.add("name", String.class);
+        SimpleFeatureType type = typeBuilder.buildFeatureType();
+
+        File shapefile = new File(Files.createTempDir(), "fixture.shp");
+        Map<String, Serializable> params = new HashMap<>();
+        params.put("url", shapefile.toURI().toURL());
+        ShapefileDataStore store = (ShapefileDataStore) new ShapefileDataStoreFactory().createNewDataStore(params);
+        store.createSchema(type);
+
+        Random random = new Random(geometries.size());
+        FeatureWriter<SimpleFeatureType, SimpleFeature> writer =
+                store.getFeatureWriterAppend(store.getTypeNames()[0], Transaction.AUTO_COMMIT);
+        try {
+            for (int i = 0; i < geometries.size(); i++) {
+                SimpleFeature feature = writer.next();
+                feature.setDefaultGeometry(geometries.get(i));
+                feature.setAttribute("jobs", random.nextInt(500));
+                feature.setAttribute("workers", i % 7 == 0 ? 0D : random.nextDouble() * 300);
+                feature.setAttribute("name", "Feature " + i);
+                writer.write();
+            }
+        } finally {
+            writer.close();
+            store.dispose();
+        }
+        return shapefile;
+    }
+}
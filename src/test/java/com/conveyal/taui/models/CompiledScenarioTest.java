@@ -0,0 +1,119 @@
+package com.conveyal.taui.models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Check that compiled scenarios are reused only while the modifications in the variant and their nonces are unchanged.
+ */
+public class CompiledScenarioTest {
+
+    @Test
+    public void keyChangesWithNonceMembershipAndOrder () {
+        List<Modification> modifications = Arrays.asList(removeTrips("a"), removeTrips("b"));
+        String key = CompiledScenario.key("project", 0, modifications);
+        assertThat(CompiledScenario.key("project", 0, Arrays.asList(removeTrips("a"), removeTrips("b"))),
+                equalTo(key));
+
+        modifications.get(1).nonce = "b-saved-again";
+        assertThat(CompiledScenario.key("project", 0, modifications), not(equalTo(key)));
+        modifications.get(1).nonce = "b-nonce";
+
+        assertThat(CompiledScenario.key("project", 0, modifications.subList(0, 1)), not(equalTo(key)));
+        assertThat(CompiledScenario.key("project", 0, Arrays.asList(removeTrips("b"), removeTrips("a"))),
+                not(equalTo(key)));
+        assertThat(CompiledScenario.key("project", 1, modifications), not(equalTo(key)));
+        assertThat(CompiledScenario.key("another-project", 0, modifications), not(equalTo(key)));
+    }
+
+    @Test
+    public void hitReturnsTheSameInstanceWithoutReadingModifications () {
+        String projectId = uniqueProjectId();
+        List<Modification> project = Arrays.asList(removeTrips("a"), removeTrips("b"));
+        CountingReader reader = new CountingReader(project);
+
+        CompiledScenario compiled = CompiledScenario.forVariant(projectId, 0, () -> project, reader);
+        assertThat(reader.reads.get(), equalTo(1));
+        assertThat(compiled.modifications.size(), equalTo(2));
+
+        assertThat(CompiledScenario.forVariant(projectId, 0, () -> project, reader), sameInstance(compiled));
+        assertThat(reader.reads.get(), equalTo(1));
+    }
+
+    @Test
+    public void savedModificationIsCompiledAgain () {
+        String projectId = uniqueProjectId();
+        List<Modification> project = Arrays.asList(removeTrips("a"), removeTrips("b"));
+        CompiledScenario compiled = CompiledScenario.forVariant(projectId, 0, () -> project, () -> project);
+
+        project.get(0).nonce = "a-saved-again";
+        project.get(0).name = "Renamed";
+        CompiledScenario recompiled = CompiledScenario.forVariant(projectId, 0, () -> project, () -> project);
+        assertThat(recompiled, not(sameInstance(compiled)));
+        assertThat(recompiled.crc, not(equalTo(compiled.crc)));
+    }
+
+    @Test
+    public void changedVariantMembershipIsCompiledAgain () {
+        String projectId = uniqueProjectId();
+        List<Modification> project = new ArrayList<>(Arrays.asList(removeTrips("a"), removeTrips("b")));
+        project.get(1).variants = new boolean[] { false, true };
+        CompiledScenario compiled = CompiledScenario.forVariant(projectId, 0, () -> project, () -> project);
+        assertThat(compiled.modifications.size(), equalTo(1));
+
+        // Add the second modification to the first variant, which does not change its nonce.
+        project.get(1).variants = new boolean[] { true, true };
+        CompiledScenario recompiled = CompiledScenario.forVariant(projectId, 0, () -> project, () -> project);
+        assertThat(recompiled, not(sameInstance(compiled)));
+        assertThat(recompiled.modifications.size(), equalTo(2));
+
+        // A modification added to the project but not to this variant leaves it as it was.
+        project.add(removeTrips("c"));
+        project.get(2).variants = new boolean[] { false, true };
+        assertThat(CompiledScenario.forVariant(projectId, 0, () -> project, () -> project), sameInstance(recompiled));
+    }
+
+    /** The cache is shared by all tests, so each test uses its own project. */
+    private static String uniqueProjectId () {
+        return UUID.randomUUID().toString();
+    }
+
+    private static RemoveTrips removeTrips (String id) {
+        RemoveTrips removeTrips = new RemoveTrips();
+        removeTrips._id = id;
+        removeTrips.nonce = id + "-nonce";
+        removeTrips.name = "Remove route " + id;
+        removeTrips.feed = "feed";
+        removeTrips.routes = new String[] { "route-" + id };
+        removeTrips.variants = new boolean[] { true };
+        return removeTrips;
+    }
+
+    /** Counts how many times the complete modifications are read, which only happens on a cache miss. */
+    private static class CountingReader implements Supplier<Collection<Modification>> {
+        final AtomicInteger reads = new AtomicInteger();
+        final Collection<Modification> modifications;
+
+        CountingReader (Collection<Modification> modifications) {
+            this.modifications = modifications;
+        }
+
+        @Override
+        public Collection<Modification> get () {
+            reads.incrementAndGet();
+            return modifications;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.conveyal.taui.models;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Check the distances used to place stops along new trip patterns against the geodesic distances computed by GeoTools.
+ */
+public class ModificationStopTest {
+    /** The relative error documented on ModificationStop.distanceMeters */
+    private static final double TOLERANCE = 1e-5;
+
+    @Test
+    public void nearbyDistancesMatchGeoTools () {
+        Random random = new Random(42);
+        for (double span : new double[] {0.0001, 0.001, 0.01, ModificationStop.MAX_LOCAL_DEGREES}) {
+            for (int i = 0; i < 2000; i++) {
+                Coordinate c0 = new Coordinate(random.nextDouble() * 360 - 180, random.nextDouble() * 160 - 80);
+                Coordinate c1 = new Coordinate(c0.x + (random.nextDouble() * 2 - 1) * span,
+                        c0.y + (random.nextDouble() * 2 - 1) * span);
+                double expected = ModificationStop.orthodromicDistanceMeters(c0, c1);
+                double actual = ModificationStop.distanceMeters(c0, c1);
+                // Allow a millimeter for coordinates so close that a relative error is meaningless.
+                assertThat(c0 + " to " + c1, actual, closeTo(expected, Math.max(expected * TOLERANCE, 0.001)));
+            }
+        }
+    }
+
+    @Test
+    public void distantCoordinatesUseGeoTools () {
+        Coordinate c0 = new Coordinate(-77.0, 38.9);
+        Coordinate c1 = new Coordinate(-76.5, 39.3);
+        assertThat(ModificationStop.distanceMeters(c0, c1),
+                equalTo(ModificationStop.orthodromicDistanceMeters(c0, c1)));
+    }
+
+    @Test
+    public void identicalCoordinatesAreZeroApart () {
+        Coordinate c = new Coordinate(-77.0, 38.9);
+        assertThat(ModificationStop.distanceMeters(c, new Coordinate(c)), lessThan(1e-9));
+    }
+}
@@ -0,0 +1,49 @@
+package com.conveyal.taui.persistence;
+
+import com.conveyal.taui.AnalysisServerTest;
+import com.mongodb.DBObject;
+import com.mongodb.QueryBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Check that the queries the controllers make are served by the indexes created in Persistence.initialize, by asking
+ * the local test database to explain each of them.
+ */
+public class PersistenceIndexTest {
+    private static final String ACCESS_GROUP = "OFFLINE";
+
+    private static final String ID = "5c0a1b2c3d4e5f6a7b8c9d0e";
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // start server if it isn't already running, which connects to the database and creates the indexes
+        AnalysisServerTest.setUp();
+    }
+
+    @Test
+    public void listQueriesDoNotScanCollections () {
+        assertIndexed("regions", Persistence.regions, new QueryBuilder().get());
+        assertIndexed("projects", Persistence.projects, QueryBuilder.start("regionId").is(ID).get());
+        assertIndexed("modifications", Persistence.modifications, QueryBuilder.start("projectId").is(ID).get());
+        assertIndexed("bundles", Persistence.bundles, QueryBuilder.start("regionId").is(ID).get());
+        assertIndexed("bookmarks", Persistence.bookmarks, QueryBuilder.start("regionId").is(ID).get());
+        assertIndexed("aggregation areas", Persistence.aggregationAreas, QueryBuilder.start("regionId").is(ID).get());
+        assertIndexed("opportunity datasets", Persistence.opportunityDatasets,
+                QueryBuilder.start("regionId").is(ID).get());
+        assertIndexed("opportunity dataset sources", Persistence.opportunityDatasets,
+                QueryBuilder.start("sourceId").is(ID).get());
+        assertIndexed("regional analyses", Persistence.regionalAnalyses, QueryBuilder.start().and(
+                QueryBuilder.start("regionId").is(ID).get(),
+                QueryBuilder.start("deleted").is(false).get()
+        ).get());
+    }
+
+    private static void assertIndexed (String description, MongoMap<?> map, DBObject query) {
+        DBObject explanation = map.explainPermitted(query, ACCESS_GROUP);
+        assertFalse("Query of " + description + " scans the collection: " + explanation,
+                MongoMap.isCollectionScan(explanation));
+    }
+}